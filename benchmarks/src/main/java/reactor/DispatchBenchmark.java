@@ -0,0 +1,115 @@
+package reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// ------------------------------------------------------------
+//                    DISPATCH BENCHMARK
+// ------------------------------------------------------------
+// The part of a loop iteration between select() and the
+// handlers: walking the selected keys and calling dispatch() on
+// each. 'array' is the reactor's SelectedKeys walk, 'hashSet'
+// the iterate-and-clear of the JDK's own key set. The selector
+// is never polled, the keys are put into the set by hand.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatchBenchmark {
+
+    @Param({ "1", "16", "256" })
+    int keys;
+
+    Reactor reactor;
+
+    Pipe[] pipes;
+
+    SelectionKey[] registered;
+
+    final Set<SelectionKey> hashSet = new HashSet<>();
+
+    long dispatched;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        Reactor.optimizeSelector = true;
+
+        reactor = new Reactor((Handlers.HandlerFactory<?>) null);
+
+        if (reactor.selectedKeys == null) throw new IllegalStateException("selected-key set not installed");
+
+        pipes = new Pipe[keys];
+
+        registered = new SelectionKey[keys];
+
+        for (int i = 0; i < keys; i++) {
+
+            pipes[i] = Pipe.open();
+
+            pipes[i].source().configureBlocking(false);
+
+            registered[i] = pipes[i].source().register(reactor.selector, SelectionKey.OP_READ, (Runnable) () -> dispatched++);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        for (Pipe pipe : pipes) {
+
+            pipe.source().close();
+
+            pipe.sink().close();
+        }
+
+        reactor.close();
+    }
+
+
+    @Benchmark
+    public long array() {
+
+        Reactor.SelectedKeys selected = reactor.selectedKeys;
+
+        for (SelectionKey key : registered) selected.add(key);
+
+        reactor.dispatchSelectedKeys();
+
+        return dispatched;
+    }
+
+    @Benchmark
+    public long hashSet() {
+
+        for (SelectionKey key : registered) hashSet.add(key);
+
+        for (SelectionKey key : hashSet) reactor.dispatch(key);
+
+        hashSet.clear();
+
+        return dispatched;
+    }
+}
@@ -0,0 +1,123 @@
+package reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ------------------------------------------------------------
+//                  FRAME DECODE BENCHMARK
+// ------------------------------------------------------------
+// Frames per second through CompositeBuffer.readFrom and the
+// length-field decoder, without a socket: a batch of FRAMES
+// length-prefixed frames is read from memory, decoded into
+// zero-copy views and recycled, like one HandlerPipeline round.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FrameDecodeBenchmark {
+
+    static final int FRAMES = 64;
+
+    @Param({ "16", "256", "4096" })
+    int size;
+
+    @Param({ "true", "false" })
+    boolean strip;
+
+    ByteBuffer source;
+
+    ReadableByteChannel channel;
+
+    Buffers.CompositeBuffer input;
+
+    Codecs.LengthFieldFrameDecoder decoder;
+
+    final List<ByteBuffer[]> frames = new ArrayList<>(FRAMES);
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+
+        source = ByteBuffer.allocateDirect(FRAMES * (4 + size));
+
+        for (int i = 0; i < FRAMES; i++) {
+
+            source.putInt(size);
+
+            for (int j = 0; j < size; j++) source.put((byte) j);
+        }
+
+        source.flip();
+
+        channel = new ReadableByteChannel() {
+
+            public int read(ByteBuffer dst) {
+
+                int n = Math.min(dst.remaining(), source.remaining());
+
+                ByteBuffer slice = source.duplicate();
+
+                slice.limit(slice.position() + n);
+
+                dst.put(slice);
+
+                source.position(source.position() + n);
+
+                return n;
+            }
+
+            public boolean isOpen() { return true; }
+
+            public void close() {}
+        };
+
+        input = new Buffers.CompositeBuffer(Handlers.MAX_MESSAGE);
+
+        decoder = new Codecs.LengthFieldFrameDecoder(Handlers.MAX_MESSAGE, strip);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { input.release(); }
+
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode() throws IOException {
+
+        source.rewind();
+
+        while (source.hasRemaining()) input.readFrom(channel);
+
+        decoder.decode(input, frames);
+
+        int decoded = frames.size();
+
+        frames.clear();
+
+        input.recycle();
+
+        return decoded;
+    }
+}
@@ -0,0 +1,97 @@
+package reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// ------------------------------------------------------------
+//                GATHERING WRITE BENCHMARK
+// ------------------------------------------------------------
+// A burst of small responses to one loopback connection: queued
+// in an OutboundQueue and flushed with gathering writes, against
+// one write() per buffer. Both sides drain the same bytes.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GatheringWriteBenchmark {
+
+    @Param({ "4", "16", "64" })
+    int buffers;
+
+    @Param({ "64", "1024" })
+    int size;
+
+    Loopback loopback;
+
+    ByteBuffer[] responses;
+
+    Buffers.OutboundQueue queue;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        loopback = new Loopback();
+
+        responses = new ByteBuffer[buffers];
+
+        for (int i = 0; i < buffers; i++) responses[i] = ByteBuffer.allocateDirect(size);
+
+        // Water marks out of reach, the queue never pauses.
+        queue = new Buffers.OutboundQueue(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        queue.release();
+
+        loopback.close();
+    }
+
+
+    @Benchmark
+    public long gathering() throws IOException {
+
+        for (ByteBuffer response : responses) queue.add((ByteBuffer) response.clear(), false);
+
+        while (!queue.isEmpty()) queue.flush(loopback.client);
+
+        loopback.drain((long) buffers * size);
+
+        return queue.pendingBytes();
+    }
+
+    @Benchmark
+    public long single() throws IOException {
+
+        for (ByteBuffer response : responses) {
+
+            response.clear();
+
+            while (response.hasRemaining()) loopback.client.write(response);
+        }
+
+        loopback.drain((long) buffers * size);
+
+        return buffers;
+    }
+}
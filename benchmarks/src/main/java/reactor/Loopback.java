@@ -0,0 +1,75 @@
+package reactor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// ------------------------------------------------------------
+//                          LOOPBACK
+// ------------------------------------------------------------
+// A connected pair of blocking channels over 127.0.0.1. The
+// benchmarks write on one end and drain on the other from the
+// same thread, so every write must fit the socket buffers
+// (BUFFER_SIZE on either side).
+//
+final class Loopback implements AutoCloseable {
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    final SocketChannel client;
+
+    final SocketChannel server;
+
+    final ByteBuffer sink = ByteBuffer.allocateDirect(1 << 20);
+
+
+    Loopback() throws IOException {
+
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+
+            acceptor.socket().setReceiveBufferSize(BUFFER_SIZE);
+
+            acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            client = SocketChannel.open();
+
+            client.socket().setSendBufferSize(BUFFER_SIZE);
+
+            client.connect(acceptor.getLocalAddress());
+
+            server = acceptor.accept();
+        }
+
+        client.socket().setTcpNoDelay(true);
+
+        server.socket().setTcpNoDelay(true);
+    }
+
+
+    // Reads exactly n bytes from the server end.
+    void drain(long n) throws IOException {
+
+        while (n > 0) {
+
+            sink.clear();
+
+            if (n < sink.capacity()) sink.limit((int) n);
+
+            int read = server.read(sink);
+
+            if (read < 0) throw new IOException("closed");
+
+            n -= read;
+        }
+    }
+
+    public void close() throws IOException {
+
+        client.close();
+
+        server.close();
+    }
+}
@@ -0,0 +1,76 @@
+package reactor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// ------------------------------------------------------------
+//                  SOCKET BUFFER BENCHMARK
+// ------------------------------------------------------------
+// One write and the matching read through a loopback socket,
+// from and into heap or direct buffers. The JDK copies a heap
+// buffer through a temporary direct one on every call.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 2, jvmArgsAppend = "-Xmx1g")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SocketBufferBenchmark {
+
+    @Param({ "heap", "direct" })
+    String kind;
+
+    @Param({ "256", "4096", "32768" })
+    int size;
+
+    Loopback loopback;
+
+    ByteBuffer out;
+
+    ByteBuffer in;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+
+        loopback = new Loopback();
+
+        out = kind.equals("heap") ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+
+        in = kind.equals("heap") ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException { loopback.close(); }
+
+
+    @Benchmark
+    public int writeAndRead() throws IOException {
+
+        out.clear();
+
+        while (out.hasRemaining()) loopback.client.write(out);
+
+        in.clear();
+
+        while (in.hasRemaining()) loopback.server.read(in);
+
+        return in.position();
+    }
+}
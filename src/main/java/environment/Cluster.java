@@ -0,0 +1,152 @@
+package environment;
+
+import reactor.Load;
+import utils.Logger;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// ------------------------------------------------------------
+//                           CLUSTER
+// ------------------------------------------------------------
+// N Reactor JVMs on one box, each on a free local port, started
+// in parallel. start() completes when every node accepts
+// connections; if one fails, the others are stopped again.
+// Each node's output goes to <dir>/node-<uid>.log.
+//
+// JVM options for the nodes come from environment.jvm (space
+// separated), e.g. "-Xmx256m -XX:+UseParallelGC".
+//
+public class Cluster implements AutoCloseable {
+
+    final List<Container> nodes = new ArrayList<>();
+
+
+    // 'reactorArgs' follow the port: loops, mode, ...
+    Cluster(int size, Path dir, String... reactorArgs) throws IOException {
+
+        checkArgument(size > 0, "need at least one node");
+
+        List<String> jvmOptions = jvmOptions();
+
+        for (int uid = 0; uid < size; uid++) {
+
+            int port = freePort();
+
+            List<String> args = new ArrayList<>();
+
+            args.add(Integer.toString(port));
+
+            args.addAll(Arrays.asList(reactorArgs));
+
+            nodes.add(new Container(uid, port, Container.Readiness.PORT, dir.resolve("node-" + uid + ".log"), jvmOptions, "reactor.Reactor", args.toArray(new String[0])));
+        }
+    }
+
+
+    CompletableFuture<Cluster> start() {
+
+        CompletableFuture<?>[] ready = nodes.stream().map(Container::start).toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(ready).handle((ignored, error) -> {
+
+            if (error != null) {
+
+                close();
+
+                throw new IllegalStateException("cluster failed to start", error);
+            }
+
+            return this;
+        });
+    }
+
+    int[] ports() { return nodes.stream().mapToInt(node -> node.port).toArray(); }
+
+    // Stops all nodes and waits for them to exit.
+    public void close() {
+
+        CompletableFuture<?>[] exits = nodes.stream().map(Container::stop).toArray(CompletableFuture[]::new);
+
+        try {
+
+            CompletableFuture.allOf(exits).get(2 * Container.STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch (Exception e) {
+
+            Logger.warn("cluster did not stop cleanly", e);
+        }
+    }
+
+
+    static List<String> jvmOptions() {
+
+        String options = System.getProperty("environment.jvm", "").trim();
+
+        return options.isEmpty() ? new ArrayList<>() : Arrays.asList(options.split("\\s+"));
+    }
+
+    // Bound and released again; good enough on a quiet box.
+    static int freePort() throws IOException {
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+
+            return socket.getLocalPort();
+        }
+    }
+
+
+    // Cluster <nodes> [mode] [loops per node] [Load key=value ...]
+    //
+    // Starts the nodes ('frames' reactors with one loop each by
+    // default). With Load arguments, runs reactor.Load against
+    // all nodes and stops the cluster; otherwise runs until the
+    // JVM is terminated.
+    public static void main(String[] args) throws Exception {
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+
+        String mode = args.length > 1 ? args[1] : "frames";
+
+        String loops = args.length > 2 ? args[2] : "1";
+
+        String[] load = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+
+        long begin = System.nanoTime();
+
+        Cluster cluster = new Cluster(size, Paths.get("out"), loops, mode);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::close, "cluster-shutdown"));
+
+        cluster.start().join();
+
+        Logger.info("{} nodes ready in {} ms on ports {}", size, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin),
+
+                Arrays.toString(cluster.ports()));
+
+        if (load.length == 0) {
+
+            Thread.currentThread().join();
+        }
+
+        String ports = Arrays.stream(cluster.ports()).mapToObj(Integer::toString).collect(Collectors.joining(","));
+
+        String[] loadArgs = Arrays.copyOf(load, load.length + 1);
+
+        loadArgs[load.length] = "port=" + ports;
+
+        Load.main(loadArgs);
+
+        cluster.close();
+    }
+}
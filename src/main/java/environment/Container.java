@@ -2,135 +2,280 @@ package environment;
 
 import utils.Logger;
 
-import java.io.File;
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.lang.ProcessBuilder.Redirect;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static java.lang.ProcessBuilder.Redirect.*;
 
+// ------------------------------------------------------------
+//                          CONTAINER
+// ------------------------------------------------------------
+// A child JVM that runs a main class from this class path.
+//
+// start() completes once the node is ready: with PORT
+// readiness when its port accepts a connection (probed from a
+// pool thread, retried on a timer), with HANDSHAKE when it
+// prints a line starting with READY, e.g. once it is warmed up.
+// It fails if the process exits first or is not ready within
+// environment.start.timeout ms.
+//
+// stdout and stderr are pumped, line by line, into the node's
+// log file. Exit is observed by a thread blocked in waitFor()
+// (Process.onExit needs Java 9, the build targets 8); stop()
+// sends SIGTERM, and SIGKILL if the node is still alive after
+// environment.stop.timeout ms.
+//
 public class Container {
 
+    enum Readiness { PORT, HANDSHAKE }
+
+    static final String READY = "READY";
+
+    static final long START_TIMEOUT = Long.getLong("environment.start.timeout", 30_000);
+
+    static final long STOP_TIMEOUT = Long.getLong("environment.stop.timeout", 5_000);
+
+    static final long PROBE_MILLIS = 20;
+
+    // Schedules the probes and timeouts of all containers; never
+    // blocks, so one hanging node cannot delay another's timeout.
+    static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+
+        Thread thread = new Thread(task, "container-timer");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    // Runs the blocking port probes.
+    static final ExecutorService probes = Executors.newCachedThreadPool(task -> {
+
+        Thread thread = new Thread(task, "container-probe");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
     public final int uid;
 
+    public final int port;
+
+    final Readiness readiness;
+
     final String[] commands;
 
-    Process process;
+    final Path log;
+
+    final CompletableFuture<Container> ready = new CompletableFuture<>();
+
+    final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+    volatile Process process;
 
+    // Set by stop(); destroy() closes the output stream under pump().
+    volatile boolean stopping;
 
-    Container(int _uid) {
+    long startNanos;
+
+    long readyNanos;
+
+
+    Container(int _uid, int _port, Readiness _readiness, Path _log, List<String> jvmOptions, String mainClass, String... args) {
 
         uid = _uid;
 
+        port = _port;
+
+        readiness = checkNotNull(_readiness);
+
+        log = checkNotNull(_log);
+
+        List<String> command = new ArrayList<>();
+
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
 
+        command.addAll(jvmOptions);
 
-        commands = new String[] {
+        command.add("-cp");
 
-                // java
-                System.getProperty("java.home") + "/bin/java".replace(':', '.'),
+        command.add(System.getProperty("java.class.path"));
 
-                // -classpath
-                "-cp", System.getProperty("java.class.path"),
+        command.add(checkNotNull(mainClass));
 
-        };
+        command.addAll(Arrays.asList(args));
+
+        commands = command.toArray(new String[0]);
     }
 
-    public static void main(String[] args) {
 
-        Path workingDir = Paths.get(System.getProperty("user.dir"));
+    public synchronized CompletableFuture<Container> start() {
+
+        checkState(process == null, "container %s already started", uid);
+
+        try {
+
+            Files.createDirectories(log.toAbsolutePath().getParent());
+
+            startNanos = System.nanoTime();
+
+            process = new ProcessBuilder(commands).redirectErrorStream(true).start();
+        }
+        catch (IOException ex) {
+
+            Logger.error("error booting local container", ex);
+
+            exit.complete(-1);
+
+            ready.completeExceptionally(ex);
+
+            return ready;
+        }
+
+        daemon(this::pump, "container-" + uid + "-out");
+
+        daemon(this::await, "container-" + uid + "-exit");
+
+        if (readiness == Readiness.PORT) probes.execute(this::probe);
+
+        timer.schedule(() -> {
 
-        System.out.println(workingDir);
+            if (ready.completeExceptionally(new TimeoutException("container " + uid + " not ready after " + START_TIMEOUT + " ms"))) stop();
+
+        }, START_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        return ready;
     }
 
-//    public CompletableFuture<Container> start() {
-//
-//        return CompletableFuture.supplyAsync(() -> {
-//
-//            ProcessBuilder builder = new ProcessBuilder();
-//
-//            Path workingDir = Paths.get(System.getProperty("user.dir"));
-//
-//            checkState(Files.isDirectory(Paths.get(workingDir.filePath())));
-//
-//            File out = Paths.get(workingDir.filePath() + "/out").toFile();
-//
-//            try {
-//
-//                if (out.exists()) {
-//
-//                    checkState(out.delete());
-//                }
-//                if (out.createNewFile()) {
-//
-//                    Logger.info("redirect stdout to " + out.getPath());
-//                }
-//            }
-//            catch (IOException ex) {
-//
-//                Logger.error(ex);
-//            }
-//
-//            builder.redirectOutput(out);
-//
-//            builder.redirectError(Redirect.INHERIT);
-//
-//            builder.directory(Paths.get(workingDir.filePath()).toFile());
-//
-//            builder.command(commands);
-//
-//            try {
-//
-//                process = builder.start();
-//
-//                while (!process.isAlive()) {
-//
-//                    try {
-//
-//                        Thread.sleep(50);
-//
-//                    } catch (InterruptedException e) {
-//
-//                        e.printStackTrace();
-//                    }
-//                }
-//            }
-//            catch (IOException ex) {
-//
-//                Logger.error("error booting local container", ex);
-//
-//                return null;
-//            }
-//
-//            return this;
-//        });
-//    }
+    // Completes with the exit code.
+    public CompletableFuture<Integer> stop() {
+
+        Process p = process;
+
+        if (p == null) return CompletableFuture.completedFuture(-1);
 
-    public CompletableFuture<Void> stop() {
+        if (p.isAlive()) {
 
-        return CompletableFuture.runAsync(() -> {
+            stopping = true;
 
-            if (process != null && process.isAlive()) {
+            p.destroy();
 
-                process.destroyForcibly();
+            timer.schedule(() -> { if (p.isAlive()) p.destroyForcibly(); }, STOP_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        return exit;
+    }
+
+    public CompletableFuture<Container> ready() { return ready; }
+
+    public CompletableFuture<Integer> exit() { return exit; }
+
+    public Path log() { return log; }
+
+    // From start() to ready, -1 while not ready.
+    public long startupMillis() { return ready.isDone() && !ready.isCompletedExceptionally() ? TimeUnit.NANOSECONDS.toMillis(readyNanos - startNanos) : -1; }
+
+
+    void probe() {
+
+        if (ready.isDone()) return;
+
+        try (Socket socket = new Socket()) {
+
+            socket.connect(new InetSocketAddress("127.0.0.1", port), (int) PROBE_MILLIS);
+
+            markReady();
+        }
+        catch (IOException e) {
+
+            timer.schedule(() -> probes.execute(this::probe), PROBE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
 
-                try {
+    void markReady() {
 
-                    while (process.isAlive()) {
+        readyNanos = System.nanoTime();
 
-                        Thread.sleep(100);
-                    }
-                } catch (InterruptedException ex) {
-                    // ignore.
-                }
+        ready.complete(this);
+    }
+
+    // Copies the node's output into its log, flushed whenever the
+    // node pauses.
+    void pump() {
+
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+             Writer out = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+
+            String line;
+
+            while ((line = in.readLine()) != null) {
+
+                if (readiness == Readiness.HANDSHAKE && !ready.isDone() && line.startsWith(READY)) markReady();
+
+                out.write(line);
+
+                out.write('\n');
+
+                if (!in.ready()) out.flush();
             }
-        });
+        }
+        catch (IOException ex) {
+
+            if (!stopping) Logger.warn("lost output of container " + uid, ex);
+        }
     }
 
+    void await() {
+
+        boolean interrupted = false;
+
+        while (true) {
+
+            try {
 
+                int code = process.waitFor();
+
+                ready.completeExceptionally(new IllegalStateException("container " + uid + " exited with " + code + " before it was ready"));
+
+                exit.complete(code);
+
+                break;
+            }
+            catch (InterruptedException e) {
+
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    static void daemon(Runnable task, String name) {
+
+        Thread thread = new Thread(task, name);
+
+        thread.setDaemon(true);
+
+        thread.start();
+    }
 }
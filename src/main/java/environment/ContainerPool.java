@@ -0,0 +1,302 @@
+package environment;
+
+import reactor.Warmup;
+import utils.Ascii;
+import utils.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+// ------------------------------------------------------------
+//                        CONTAINER POOL
+// ------------------------------------------------------------
+// Reactor nodes launched ahead of time and warmed up before
+// anyone needs them (reactor.Warmup: synthetic loopback traffic
+// until the JIT has settled, then the READY handshake). take()
+// hands out a warm node, which then belongs to the caller, and
+// launches a replacement in the background; a take() with no
+// warm node left waits for the next one to come up.
+//
+// A node that fails to come up fails the oldest waiting take()
+// and is not replaced until the next take().
+//
+public class ContainerPool implements AutoCloseable {
+
+    final int size;
+
+    final Path dir;
+
+    final String[] reactorArgs;
+
+    final List<String> jvmOptions = Cluster.jvmOptions();
+
+    final ArrayDeque<Container> warm = new ArrayDeque<>();
+
+    final ArrayDeque<CompletableFuture<Container>> waiters = new ArrayDeque<>();
+
+    // Launched, not yet ready.
+    final List<Container> warming = new ArrayList<>();
+
+    int nextUid;
+
+    boolean closed;
+
+
+    // 'reactorArgs' follow the port: loops, mode, ...
+    ContainerPool(int _size, Path _dir, String... _reactorArgs) {
+
+        checkArgument(_size > 0, "pool size must be positive");
+
+        size = _size;
+
+        dir = checkNotNull(_dir);
+
+        reactorArgs = _reactorArgs.clone();
+
+        synchronized (this) { refill(); }
+    }
+
+
+    synchronized CompletableFuture<Container> take() {
+
+        checkState(!closed, "pool closed");
+
+        Container container = warm.pollFirst();
+
+        CompletableFuture<Container> taken;
+
+        if (container != null) {
+
+            taken = CompletableFuture.completedFuture(container);
+        }
+        else {
+
+            taken = new CompletableFuture<>();
+
+            waiters.addLast(taken);
+        }
+
+        refill();
+
+        return taken;
+    }
+
+    synchronized int warm() { return warm.size(); }
+
+    // Stops the warm and warming nodes; taken ones are the caller's.
+    public void close() {
+
+        List<Container> nodes;
+
+        List<CompletableFuture<Container>> pending;
+
+        synchronized (this) {
+
+            closed = true;
+
+            nodes = new ArrayList<>(warm);
+
+            nodes.addAll(warming);
+
+            pending = new ArrayList<>(waiters);
+
+            warm.clear();
+
+            waiters.clear();
+        }
+
+        for (CompletableFuture<Container> waiter : pending) waiter.completeExceptionally(new IllegalStateException("pool closed"));
+
+        for (Container node : nodes) node.stop().join();
+    }
+
+    // Caller holds the lock. Enough nodes for the waiters, plus
+    // 'size' to keep warm.
+    void refill() {
+
+        while (!closed && warm.size() + warming.size() < size + waiters.size()) {
+
+            int uid = nextUid++;
+
+            int port;
+
+            try {
+
+                port = Cluster.freePort();
+            }
+            catch (IOException e) {
+
+                Logger.warn("no port for container " + uid, e);
+
+                return;
+            }
+
+            List<String> args = new ArrayList<>();
+
+            args.add(Integer.toString(port));
+
+            args.addAll(Arrays.asList(reactorArgs));
+
+            Container container = new Container(uid, port, Container.Readiness.HANDSHAKE, dir.resolve("warm-" + uid + ".log"),
+
+                    jvmOptions, "reactor.Warmup", args.toArray(new String[0]));
+
+            warming.add(container);
+
+            container.start().whenComplete((ready, error) -> warmedUp(container, error));
+        }
+    }
+
+    void warmedUp(Container container, Throwable error) {
+
+        CompletableFuture<Container> waiter;
+
+        boolean discard = false;
+
+        boolean stopped;
+
+        synchronized (this) {
+
+            stopped = closed;
+
+            warming.remove(container);
+
+            waiter = waiters.pollFirst();
+
+            if (error == null && closed) {
+
+                discard = true;
+            }
+            else if (error == null && waiter == null) {
+
+                warm.addLast(container);
+            }
+        }
+
+        if (discard) {
+
+            container.stop();
+        }
+        else if (error != null) {
+
+            if (!stopped) Logger.warn("container " + container.uid + " failed to warm up, see " + container.log(), error);
+
+            if (waiter != null) waiter.completeExceptionally(error);
+        }
+        else if (waiter != null) {
+
+            waiter.complete(container);
+        }
+    }
+
+
+    // ContainerPool [size] [mode] [loops] [seconds]
+    //
+    // Time to first request and to steady state of a node taken
+    // from the pool against one launched cold, both measured with
+    // the same client from the moment the node is asked for. The
+    // client is warmed up first on a throwaway node. The pooled
+    // node is asked for once the pool is full, and the pool is
+    // closed right after the handout, which stops the replacement
+    // it launched so no warm-up competes for the CPU. The clock is
+    // paused while the pool closes: the pooled figure covers the
+    // handout and the first response, not the stop.
+    public static void main(String[] args) throws Exception {
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+
+        String mode = args.length > 1 ? args[1] : "frames";
+
+        String loops = args.length > 2 ? args[2] : "1";
+
+        long millis = 1000 * (args.length > 3 ? Long.parseLong(args[3]) : 5);
+
+        Path dir = Paths.get("out");
+
+        Container throwaway = launch(-2, dir.resolve("client-warmup.log"), loops, mode);
+
+        Warmup.measure(throwaway.port, System.nanoTime(), millis);
+
+        throwaway.stop().join();
+
+        ContainerPool pool = new ContainerPool(size, dir, loops, mode);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * Container.START_TIMEOUT);
+
+        while (pool.warm() < size) {
+
+            checkState(System.nanoTime() < deadline, "pool not full after %s ms", 2 * Container.START_TIMEOUT);
+
+            Thread.sleep(10);
+        }
+
+        long origin = System.nanoTime();
+
+        Container pooled = pool.take().join();
+
+        long handout = System.nanoTime() - origin;
+
+        pool.close();
+
+        Warmup.Profile warmProfile = Warmup.measure(pooled.port, System.nanoTime() - handout, millis);
+
+        pooled.stop().join();
+
+        origin = System.nanoTime();
+
+        Container cold = launch(-1, dir.resolve("cold.log"), loops, mode);
+
+        Warmup.Profile coldProfile = Warmup.measure(cold.port, origin, millis);
+
+        cold.stop().join();
+
+        System.out.println(Ascii.TextTable.of(
+
+                Ascii.TextTable.Column.of(String.class, "node"),
+
+                Ascii.TextTable.Column.of(String.class, "launch to ready ms"),
+
+                Ascii.TextTable.Column.of(String.class, "first request ms"),
+
+                Ascii.TextTable.Column.of(String.class, "steady state ms"),
+
+                Ascii.TextTable.Column.of(String.class, "steady round trips/s")).apply(
+
+                new String[] { "pooled", "cold" },
+
+                new String[] { pooled.startupMillis() + " (ahead)", Long.toString(cold.startupMillis()) },
+
+                new String[] { millis(warmProfile.firstResponseNanos), millis(coldProfile.firstResponseNanos) },
+
+                new String[] { millis(warmProfile.steadyNanos()), millis(coldProfile.steadyNanos()) },
+
+                new String[] { String.format("%,.0f", warmProfile.steadyRate()), String.format("%,.0f", coldProfile.steadyRate()) }));
+    }
+
+    // A plain reactor node, started and ready.
+    static Container launch(int uid, Path log, String loops, String mode) throws IOException {
+
+        int port = Cluster.freePort();
+
+        Container container = new Container(uid, port, Container.Readiness.PORT, log, Cluster.jvmOptions(), "reactor.Reactor",
+
+                Integer.toString(port), loops, mode);
+
+        container.start().join();
+
+        return container;
+    }
+
+    static String millis(long nanos) { return String.format("%,.1f", nanos / 1e6); }
+}
@@ -0,0 +1,699 @@
+package reactor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ------------------------------------------------------------
+//                         BENCHMARKS
+// ------------------------------------------------------------
+// Self-contained measurements of the reactor, each one a main.
+// They run against loopback and are meant for comparing modes
+// of the same build, not for absolute numbers.
+//
+public enum Benchmarks {
+    ;
+    // -- SELECTOR ALLOCATION ---------------------------
+    // Bytes allocated by the reactor thread per round trip, with
+    // and without the array-backed selected-key set.
+    //
+    static final class SelectorAllocation {
+
+        public static void main(String[] args) throws Exception {
+
+            int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+
+            long millis = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+
+            for (boolean optimize : new boolean[] { false, true, false, true }) {
+
+                Reactor.optimizeSelector = optimize;
+
+                Reactor reactor = new Reactor(0, 0, (r, channel) -> new Handlers.HandlerEcho(r, channel));
+
+                Thread thread = new Thread(reactor, "reactor");
+
+                thread.start();
+
+                AtomicLong roundTrips = new AtomicLong();
+
+                Thread[] clients = pingPong(port(reactor), connections, 64, roundTrips);
+
+                // Let the JIT settle before measuring.
+                Thread.sleep(millis / 5);
+
+                long trips = roundTrips.get();
+
+                long bytes = allocatedBytes(thread);
+
+                Thread.sleep(millis);
+
+                trips = roundTrips.get() - trips;
+
+                bytes = allocatedBytes(thread) - bytes;
+
+                for (Thread client : clients) client.interrupt();
+
+                for (Thread client : clients) client.join();
+
+                thread.interrupt();
+
+                thread.join();
+
+                System.out.printf("optimized key set: %-5s (installed: %-5s)  %,12d round trips  %8.2f bytes/round trip  %8.2f MB/s allocated%n",
+
+                        optimize, reactor.selectedKeys != null, trips, (double) bytes / trips, bytes / (millis * 1000.0));
+            }
+        }
+    }
+
+    // -- SELECT LATENCY --------------------------------
+    // Round-trip time percentiles of small echoes for each select
+    // strategy, with the CPU the reactor thread burns meanwhile.
+    // Spinning strategies need a core of their own: on a box with
+    // fewer cores than loops plus clients they only add noise.
+    // With 'spin' the clients poll their (non-blocking) channel
+    // too, so that their own wakeups do not dominate the numbers.
+    //
+    static final class SelectLatency {
+
+        public static void main(String[] args) throws Exception {
+
+            int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+
+            long millis = args.length > 1 ? Long.parseLong(args[1]) : 5000;
+
+            boolean spin = args.length > 2 && args[2].equals("spin");
+
+            System.out.printf("%-10s %12s %10s %10s %10s %10s %8s%n", "strategy", "round trips", "p50 us", "p99 us", "p99.9 us", "max us", "cpu");
+
+            for (Reactor.SelectStrategy strategy : Reactor.SelectStrategy.values()) {
+
+                Reactor.selectStrategy = strategy;
+
+                Reactor reactor = new Reactor(0, 0, (r, channel) -> new Handlers.HandlerEcho(r, channel));
+
+                Thread thread = new Thread(reactor, "reactor");
+
+                thread.start();
+
+                Recorder[] recorders = new Recorder[connections];
+
+                for (int i = 0; i < connections; i++) recorders[i] = new Recorder(1 << 22);
+
+                Thread[] clients = timedPingPong(port(reactor), 64, spin, recorders);
+
+                Thread.sleep(millis / 5);
+
+                long cpu = cpuTime(thread);
+
+                for (Recorder recorder : recorders) recorder.on = true;
+
+                Thread.sleep(millis);
+
+                for (Recorder recorder : recorders) recorder.on = false;
+
+                cpu = cpuTime(thread) - cpu;
+
+                for (Thread client : clients) client.interrupt();
+
+                for (Thread client : clients) client.join();
+
+                thread.interrupt();
+
+                thread.join();
+
+                long[] samples = Recorder.merge(recorders);
+
+                System.out.printf("%-10s %,12d %10.1f %10.1f %10.1f %10.1f %7.0f%%%n", strategy, samples.length,
+
+                        percentile(samples, 0.50) / 1e3, percentile(samples, 0.99) / 1e3,
+
+                        percentile(samples, 0.999) / 1e3, percentile(samples, 1.0) / 1e3, cpu / (millis * 1e4));
+            }
+        }
+    }
+
+    // -- ENGINES ---------------------------------------
+    // The reactor against thread per connection, on the same
+    // pipeline: many connections, each a closed loop of small
+    // requests whose compute step burns a fixed amount of CPU
+    // ('work' checksum passes over the payload). The reactor runs
+    // compute on its I/O threads and, in a second round, on the
+    // worker pool.
+    //
+    static final class Engines {
+
+        public static void main(String[] args) throws Exception {
+
+            int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+            int work = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+            long millis = args.length > 2 ? Long.parseLong(args[2]) : 5000;
+
+            int size = 256;
+
+            int cores = Runtime.getRuntime().availableProcessors();
+
+            Events.$compute<ByteBuffer[], ByteBuffer[]> burn = burn(work);
+
+            System.out.printf("%-20s %12s %10s %10s %10s %10s%n", "engine", "round trips/s", "p50 us", "p99 us", "p99.9 us", "max us");
+
+            for (String engine : new String[] { "reactor", "reactor+pool", "threads" }) {
+
+                Runnable server;
+
+                int port;
+
+                if (engine.equals("threads")) {
+
+                    ThreadPerConnection threads = new ThreadPerConnection(0, () -> Events.Pipeline.of(Events.raw(), burn, Events.views()));
+
+                    port = threads.serverSocket.socket().getLocalPort();
+
+                    engine += threads.isVirtual() ? " (virtual)" : " (platform)";
+
+                    server = threads;
+                }
+                else {
+
+                    Events.$compute<ByteBuffer[], ByteBuffer[]> compute = engine.equals("reactor") ? burn : Events.onWorker(burn);
+
+                    Reactor reactor = new Reactor(0, cores, (r, channel) -> new Handlers.HandlerPipeline<>(r, channel,
+
+                            Events.Pipeline.of(Events.raw(), compute, Events.views())));
+
+                    port = port(reactor);
+
+                    server = reactor;
+                }
+
+                Thread thread = new Thread(server, "server");
+
+                thread.start();
+
+                Recorder[] recorders = new Recorder[Math.max(1, cores / 2)];
+
+                for (int i = 0; i < recorders.length; i++) recorders[i] = new Recorder(1 << 22);
+
+                Thread[] clients = multiplexedPingPong(port, connections, size, recorders);
+
+                Thread.sleep(millis / 5);
+
+                for (Recorder recorder : recorders) recorder.on = true;
+
+                Thread.sleep(millis);
+
+                for (Recorder recorder : recorders) recorder.on = false;
+
+                for (Thread client : clients) client.interrupt();
+
+                for (Thread client : clients) client.join();
+
+                thread.interrupt();
+
+                thread.join();
+
+                long[] samples = Recorder.merge(recorders);
+
+                System.out.printf("%-20s %,12.0f %10.1f %10.1f %10.1f %10.1f%n", engine, samples.length * 1000.0 / millis,
+
+                        percentile(samples, 0.50) / 1e3, percentile(samples, 0.99) / 1e3,
+
+                        percentile(samples, 0.999) / 1e3, percentile(samples, 1.0) / 1e3);
+            }
+        }
+
+        static volatile long sink;
+
+        // Echo, after 'work' passes over every payload byte.
+        static Events.$compute<ByteBuffer[], ByteBuffer[]> burn(int work) {
+
+            return (requests, responses) -> {
+
+                long hash = 0;
+
+                for (ByteBuffer[] views : requests) {
+
+                    for (int pass = 0; pass < work; pass++) {
+
+                        for (ByteBuffer view : views) {
+
+                            for (int i = view.position(); i < view.limit(); i++) hash = 31 * hash + view.get(i);
+                        }
+                    }
+                }
+
+                sink = hash;
+
+                responses.addAll(requests);
+            };
+        }
+    }
+
+    // -- POOLED CALLS ----------------------------------
+    // Calls from 'callers' threads through a client-side
+    // Connector.ConnectionPool to a 'frames' reactor, once per
+    // checkout order. A call checks out a connection, writes one
+    // frame, waits for its echo and returns the connection. The
+    // client connections are served by the same HandlerPipeline
+    // the server uses for inbound ones, on an outbound-only loop;
+    // connections idle for longer than 'idle' ms are swept out.
+    // LIFO keeps reusing the warm connections and lets the others
+    // age out, FIFO keeps all of them busy.
+    //
+    static final class PooledCalls {
+
+        public static void main(String[] args) throws Exception {
+
+            int callers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+
+            int max = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+            long millis = args.length > 2 ? Long.parseLong(args[2]) : 5000;
+
+            long idle = args.length > 3 ? Long.parseLong(args[3]) : 500;
+
+            Reactor server = new Reactor(0, 1, Reactor.factory("frames", "."));
+
+            Reactor client = new Reactor((Handlers.HandlerFactory<?>) null);
+
+            Thread serverThread = new Thread(server, "server");
+
+            Thread clientThread = new Thread(client, "client-loop");
+
+            serverThread.start();
+
+            clientThread.start();
+
+            Connector connector = new Connector(client);
+
+            InetSocketAddress endpoint = new InetSocketAddress("127.0.0.1", port(server));
+
+            System.out.printf("%-6s %12s %10s %10s %10s %10s %8s %8s%n", "order", "calls/s", "p50 us", "p99 us", "p99.9 us", "max us", "opened", "open");
+
+            for (Connector.ConnectionPool.Order order : Connector.ConnectionPool.Order.values()) {
+
+                Map<Handlers.Connection, Reply> replies = new ConcurrentHashMap<>();
+
+                AtomicInteger opened = new AtomicInteger();
+
+                Connector.ConnectionPool<Handlers.HandlerPipeline<ByteBuffer[], ByteBuffer[]>> pool = new Connector.ConnectionPool<>(connector, endpoint,
+
+                        (loop, channel) -> {
+
+                            Reply reply = new Reply();
+
+                            Handlers.HandlerPipeline<ByteBuffer[], ByteBuffer[]> handler = new Handlers.HandlerPipeline<>(loop, channel,
+
+                                    Events.Pipeline.of(new Codecs.LengthFieldFrameDecoder(Handlers.MAX_MESSAGE, true), reply, Events.views()));
+
+                            replies.put(handler, reply);
+
+                            opened.incrementAndGet();
+
+                            return handler;
+
+                        }, 1, max, order, idle, Handlers.Connection::isOpen).start();
+
+                Recorder[] recorders = new Recorder[callers];
+
+                for (int i = 0; i < callers; i++) recorders[i] = new Recorder(1 << 22);
+
+                Thread[] threads = pooledCallers(pool, replies, 64, recorders);
+
+                Thread.sleep(millis / 5);
+
+                for (Recorder recorder : recorders) recorder.on = true;
+
+                Thread.sleep(millis);
+
+                for (Recorder recorder : recorders) recorder.on = false;
+
+                for (Thread thread : threads) thread.interrupt();
+
+                for (Thread thread : threads) thread.join();
+
+                long[] samples = Recorder.merge(recorders);
+
+                System.out.printf("%-6s %,12.0f %10.1f %10.1f %10.1f %10.1f %8d %8d%n", order, samples.length * 1000.0 / millis,
+
+                        percentile(samples, 0.50) / 1e3, percentile(samples, 0.99) / 1e3,
+
+                        percentile(samples, 0.999) / 1e3, percentile(samples, 1.0) / 1e3, opened.get(), pool.size());
+
+                pool.close();
+            }
+
+            clientThread.interrupt();
+
+            clientThread.join();
+
+            serverThread.interrupt();
+
+            serverThread.join();
+        }
+
+        // Client compute stage: completes the call in flight once its
+        // echo has been decoded. Responses are never produced.
+        static final class Reply implements Events.$compute<ByteBuffer[], ByteBuffer[]> {
+
+            volatile CompletableFuture<Void> pending;
+
+            CompletableFuture<Void> expect() { return pending = new CompletableFuture<>(); }
+
+            public void compute(List<ByteBuffer[]> frames, List<ByteBuffer[]> responses) {
+
+                if (!frames.isEmpty()) pending.complete(null);
+            }
+        }
+
+        // One closed-loop caller per recorder; each call is timed from
+        // checkout to the echo.
+        static <H extends Handlers.Handler & Handlers.Connection> Thread[] pooledCallers(Connector.ConnectionPool<H> pool,
+
+                Map<Handlers.Connection, Reply> replies, int size, Recorder[] recorders) {
+
+            Thread[] callers = new Thread[recorders.length];
+
+            for (int i = 0; i < recorders.length; i++) {
+
+                Recorder recorder = recorders[i];
+
+                callers[i] = new Thread(() -> {
+
+                    ByteBuffer frame = ByteBuffer.allocateDirect(4 + size);
+
+                    frame.putInt(size).position(4 + size);
+
+                    frame.flip();
+
+                    try {
+
+                        while (!Thread.currentThread().isInterrupted()) {
+
+                            long start = System.nanoTime();
+
+                            H connection = pool.acquire().get();
+
+                            try {
+
+                                CompletableFuture<Void> reply = replies.get(connection).expect();
+
+                                connection.write(frame.duplicate());
+
+                                reply.get(10, TimeUnit.SECONDS);
+                            }
+                            finally {
+
+                                pool.release(connection);
+                            }
+
+                            recorder.record(System.nanoTime() - start);
+                        }
+                    }
+                    catch (InterruptedException | ExecutionException | TimeoutException ignored) {
+                        // stopped, pool closed or connection lost.
+                    }
+                }, "caller-" + i);
+
+                callers[i].start();
+            }
+
+            return callers;
+        }
+    }
+
+    // Round-trip times in nanos of one client, recorded while 'on'.
+    static final class Recorder {
+
+        final long[] samples;
+
+        int count;
+
+        volatile boolean on;
+
+
+        Recorder(int capacity) { samples = new long[capacity]; }
+
+
+        void record(long nanos) {
+
+            if (on && count < samples.length) samples[count++] = nanos;
+        }
+
+        // Sorted; read only after the recording threads are joined.
+        static long[] merge(Recorder[] recorders) {
+
+            int n = 0;
+
+            for (Recorder recorder : recorders) n += recorder.count;
+
+            long[] all = new long[n];
+
+            n = 0;
+
+            for (Recorder recorder : recorders) {
+
+                System.arraycopy(recorder.samples, 0, all, n, recorder.count);
+
+                n += recorder.count;
+            }
+
+            Arrays.sort(all);
+
+            return all;
+        }
+    }
+
+
+    static int port(Reactor reactor) {
+
+        return reactor.serverSocket.socket().getLocalPort();
+    }
+
+    // Closed-loop clients, one blocking connection per thread, each
+    // sending a fixed-size message and waiting for it to come back.
+    static Thread[] pingPong(int port, int connections, int size, AtomicLong roundTrips) throws IOException {
+
+        Thread[] clients = new Thread[connections];
+
+        for (int i = 0; i < connections; i++) {
+
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+
+            channel.socket().setTcpNoDelay(true);
+
+            clients[i] = new Thread(() -> {
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+
+                try {
+
+                    while (!Thread.currentThread().isInterrupted()) {
+
+                        buffer.clear();
+
+                        while (buffer.hasRemaining()) channel.write(buffer);
+
+                        buffer.clear();
+
+                        while (buffer.hasRemaining()) if (channel.read(buffer) < 0) return;
+
+                        roundTrips.incrementAndGet();
+                    }
+                }
+                catch (IOException ignored) {
+                    // interrupted, channel closed.
+                }
+                finally {
+
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }, "client-" + i);
+
+            clients[i].start();
+        }
+
+        return clients;
+    }
+
+    // Like pingPong, with one connection per recorder and every
+    // round trip timed; with 'spin' the client never blocks.
+    static Thread[] timedPingPong(int port, int size, boolean spin, Recorder[] recorders) throws IOException {
+
+        Thread[] clients = new Thread[recorders.length];
+
+        for (int i = 0; i < recorders.length; i++) {
+
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+
+            channel.socket().setTcpNoDelay(true);
+
+            channel.configureBlocking(!spin);
+
+            Recorder recorder = recorders[i];
+
+            clients[i] = new Thread(() -> {
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+
+                try {
+
+                    while (!Thread.currentThread().isInterrupted()) {
+
+                        long start = System.nanoTime();
+
+                        buffer.clear();
+
+                        while (buffer.hasRemaining()) channel.write(buffer);
+
+                        buffer.clear();
+
+                        while (buffer.hasRemaining()) if (channel.read(buffer) < 0) return;
+
+                        recorder.record(System.nanoTime() - start);
+                    }
+                }
+                catch (IOException ignored) {
+                    // interrupted, channel closed.
+                }
+                finally {
+
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }, "client-" + i);
+
+            clients[i].start();
+        }
+
+        return clients;
+    }
+
+    // Closed-loop clients without a thread per connection: one
+    // selector per recorder drives its share of the connections.
+    static Thread[] multiplexedPingPong(int port, int connections, int size, Recorder[] recorders) throws IOException {
+
+        Thread[] clients = new Thread[recorders.length];
+
+        for (int t = 0; t < recorders.length; t++) {
+
+            Selector selector = Selector.open();
+
+            for (int i = t; i < connections; i += recorders.length) {
+
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+
+                channel.socket().setTcpNoDelay(true);
+
+                channel.configureBlocking(false);
+
+                channel.register(selector, SelectionKey.OP_READ, new Exchange(size));
+            }
+
+            Recorder recorder = recorders[t];
+
+            clients[t] = new Thread(() -> {
+
+                ByteBuffer message = ByteBuffer.allocateDirect(size);
+
+                try {
+
+                    for (SelectionKey key : selector.keys()) send(key, message);
+
+                    while (!Thread.currentThread().isInterrupted()) {
+
+                        selector.select();
+
+                        for (SelectionKey key : selector.selectedKeys()) {
+
+                            Exchange exchange = (Exchange) key.attachment();
+
+                            if (((SocketChannel) key.channel()).read(exchange.received) < 0) return;
+
+                            if (exchange.received.hasRemaining()) continue;
+
+                            recorder.record(System.nanoTime() - exchange.start);
+
+                            send(key, message);
+                        }
+
+                        selector.selectedKeys().clear();
+                    }
+                }
+                catch (IOException ignored) {
+                    // server gone.
+                }
+                finally {
+
+                    for (SelectionKey key : selector.keys()) {
+
+                        try { key.channel().close(); } catch (IOException ignored) {}
+                    }
+
+                    try { selector.close(); } catch (IOException ignored) {}
+                }
+            }, "client-" + t);
+
+            clients[t].start();
+        }
+
+        return clients;
+    }
+
+    static final class Exchange {
+
+        final ByteBuffer received;
+
+        long start;
+
+        Exchange(int size) { received = ByteBuffer.allocateDirect(size); }
+    }
+
+    // Small enough to always fit the socket's send buffer.
+    static void send(SelectionKey key, ByteBuffer message) throws IOException {
+
+        Exchange exchange = (Exchange) key.attachment();
+
+        exchange.received.clear();
+
+        exchange.start = System.nanoTime();
+
+        message.clear();
+
+        while (message.hasRemaining()) ((SocketChannel) key.channel()).write(message);
+    }
+
+    // Sorted samples, q in (0, 1].
+    static long percentile(long[] sorted, double q) {
+
+        if (sorted.length == 0) return 0;
+
+        return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+    }
+
+    static long cpuTime(Thread thread) {
+
+        return ManagementFactory.getThreadMXBean().getThreadCpuTime(thread.getId());
+    }
+
+    static long allocatedBytes(Thread thread) {
+
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(thread.getId());
+    }
+}
@@ -0,0 +1,1150 @@
+package reactor;
+
+import utils.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// ------------------------------------------------------------
+//                           BUFFERS
+// ------------------------------------------------------------
+//
+// A heap buffer handed to a SocketChannel is copied through a
+// temporary direct buffer by the JDK on every read and write.
+// Direct  buffers avoid that copy, but they are expensive  to
+// allocate and are only freed by the garbage collector.  Hence
+// they  are carved  out of large slabs once and  recycled for
+// the lifetime of the process.
+//
+public enum Buffers {
+    ;
+    // Run with -Dreactor.buffers.debug=true to track every
+    // borrowed buffer along with the site that borrowed it.
+    static final boolean DEBUG = Boolean.getBoolean("reactor.buffers.debug");
+
+    static final BufferPool pool = new BufferPool();
+
+
+    // -- BUFFER POOL -----------------------------------
+    // Power-of-two size classes from 512 bytes to 1 MB. Every
+    // thread keeps a small cache per class in front of the
+    // shared free lists, so a reactor thread that borrows and
+    // returns its own buffers never touches shared state.
+    //
+    static final class BufferPool {
+
+        static final int MIN_SHIFT = 9;
+
+        static final int MAX_SHIFT = 20;
+
+        static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+        static final int SLAB_SIZE = 1 << 20;
+
+        // Buffers per size class a thread keeps for itself.
+        static final int CACHE_SIZE = 64;
+
+        final Queue<ByteBuffer>[] shared;
+
+        final ThreadLocal<ArrayDeque<ByteBuffer>[]> local;
+
+        final Map<ByteBuffer, Throwable> borrowed = DEBUG
+
+                ? Collections.synchronizedMap(new IdentityHashMap<>())
+
+                : null;
+
+        final AtomicLong slabs = new AtomicLong();
+
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        BufferPool() {
+
+            shared = new Queue[CLASSES];
+
+            for (int i = 0; i < CLASSES; i++) {
+
+                shared[i] = new ConcurrentLinkedQueue<>();
+            }
+
+            // A class gets its cache on the first release into it.
+            local = ThreadLocal.withInitial(() -> new ArrayDeque[CLASSES]);
+
+            if (DEBUG) {
+
+                Runtime.getRuntime().addShutdownHook(new Thread(this::reportLeaks, "buffer-leak-report"));
+            }
+        }
+
+
+        // Returns a cleared direct buffer with at least the requested
+        // capacity. Requests above the largest class are not pooled.
+        ByteBuffer acquire(int size) {
+
+            int sizeClass = sizeClass(size);
+
+            ByteBuffer buffer;
+
+            if (sizeClass < 0) {
+
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+            else {
+
+                ArrayDeque<ByteBuffer> cache = local.get()[sizeClass];
+
+                buffer = cache != null ? cache.pollLast() : null;
+
+                if (buffer == null) buffer = shared[sizeClass].poll();
+
+                if (buffer == null) buffer = carve(sizeClass);
+
+                buffer.clear();
+            }
+
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if (DEBUG) borrowed.put(buffer, new Throwable("buffer borrowed here"));
+
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+
+            if (DEBUG && borrowed.remove(buffer) == null) {
+
+                throw new IllegalStateException("buffer released twice or not borrowed from this pool");
+            }
+
+            int sizeClass = sizeClass(buffer.capacity());
+
+            // Oversized or foreign buffers are left to the collector.
+            if (sizeClass < 0 || !buffer.isDirect() || buffer.capacity() != 1 << (sizeClass + MIN_SHIFT)) return;
+
+            ArrayDeque<ByteBuffer>[] caches = local.get();
+
+            ArrayDeque<ByteBuffer> cache = caches[sizeClass];
+
+            if (cache == null) cache = caches[sizeClass] = new ArrayDeque<>(CACHE_SIZE);
+
+            if (cache.size() < CACHE_SIZE) {
+
+                cache.addLast(buffer);
+            }
+            else {
+
+                shared[sizeClass].offer(buffer);
+            }
+        }
+
+        // Hands the calling thread's cached buffers to the shared free
+        // lists and drops its cache. For threads that are about to
+        // end, e.g. the thread of a ThreadPerConnection connection:
+        // whatever they cached would otherwise be lost to the pool.
+        void drainLocal() {
+
+            ArrayDeque<ByteBuffer>[] caches = local.get();
+
+            for (int i = 0; i < CLASSES; i++) {
+
+                if (caches[i] == null) continue;
+
+                ByteBuffer buffer;
+
+                while ((buffer = caches[i].pollFirst()) != null) shared[i].offer(buffer);
+            }
+
+            local.remove();
+        }
+
+        // Cuts a fresh slab into buffers of the given class, keeps one
+        // and publishes the rest on the shared free list.
+        ByteBuffer carve(int sizeClass) {
+
+            int size = 1 << (sizeClass + MIN_SHIFT);
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(Math.max(size, SLAB_SIZE));
+
+            slabs.incrementAndGet();
+
+            ByteBuffer first = null;
+
+            for (int offset = 0; offset + size <= slab.capacity(); offset += size) {
+
+                slab.limit(offset + size).position(offset);
+
+                ByteBuffer buffer = slab.slice();
+
+                if (first == null) first = buffer;
+
+                else shared[sizeClass].offer(buffer);
+            }
+
+            return first;
+        }
+
+        static int sizeClass(int size) {
+
+            if (size > 1 << MAX_SHIFT) return -1;
+
+            int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+
+            return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+        }
+
+        // Allocation sites of all buffers currently borrowed (debug mode only).
+        List<Throwable> leaks() {
+
+            if (!DEBUG) return Collections.emptyList();
+
+            synchronized (borrowed) {
+
+                return new ArrayList<>(borrowed.values());
+            }
+        }
+
+        void reportLeaks() {
+
+            List<Throwable> leaks = leaks();
+
+            if (leaks.isEmpty()) return;
+
+            Logger.warn(leaks.size() + " pooled buffers were never released");
+
+            for (Throwable site : leaks) Logger.warn("leaked buffer", site);
+        }
+    }
+
+
+    // -- COMPOSITE BUFFER ------------------------------
+    // Growable input buffer made of pooled chunks. Data is read
+    // into the last chunk and a new chunk is appended whenever it
+    // fills up, so a connection only holds as much memory as it
+    // has unconsumed input. All indices are relative to the first
+    // unconsumed byte and run across chunk boundaries.
+    //
+    // Views handed out by slices() share memory with the chunks.
+    // Once views are out, consumed chunks are retired instead of
+    // going back to the pool, until the owner calls recycle() to
+    // declare every view handed out so far dead (typically when
+    // the output queue holding them has drained).
+    //
+    static final class CompositeBuffer {
+
+        static final int CHUNK_SIZE = 16 * 1024;
+
+        // Bytes taken from the channel per readFrom(), so that a single
+        // busy connection cannot monopolize its reactor.
+        static final int MAX_READ = 16 * CHUNK_SIZE;
+
+        final int maxCapacity;
+
+        ByteBuffer[] chunks = new ByteBuffer[4];
+
+        int count;
+
+        // Consumed bytes at the front of chunks[0].
+        int offset;
+
+        int readable;
+
+        // Views have been handed out since the last recycle().
+        boolean shared;
+
+        final List<ByteBuffer> retired = new ArrayList<>();
+
+
+        CompositeBuffer(int _maxCapacity) { maxCapacity = _maxCapacity; }
+
+
+        // Reads until the channel has nothing more to give, or MAX_READ
+        // bytes. Returns the number of bytes read, -1 on end of stream.
+        int readFrom(ReadableByteChannel channel) throws IOException {
+
+            compact();
+
+            int total = 0;
+
+            while (true) {
+
+                ByteBuffer tail = writableTail();
+
+                int n = channel.read(tail);
+
+                Metrics.read(n);
+
+                if (n < 0) return total > 0 ? total : -1;
+
+                total += n;
+
+                readable += n;
+
+                if (tail.hasRemaining() || total >= MAX_READ) return total;
+
+                // A blocking channel would wait for more, maybe forever.
+                if (channel instanceof SelectableChannel && ((SelectableChannel) channel).isBlocking()) return total;
+
+                if (readable >= maxCapacity) {
+
+                    throw new IOException("unconsumed input exceeds " + maxCapacity + " bytes");
+                }
+            }
+        }
+
+        int readableBytes() { return readable; }
+
+        byte getByte(int index) {
+
+            checkIndex(index, 1);
+
+            int at = index + offset;
+
+            int i = 0;
+
+            while (at >= chunks[i].position()) at -= chunks[i++].position();
+
+            return chunks[i].get(at);
+        }
+
+        // Zero-copy views of [index, index + length), one per chunk touched.
+        ByteBuffer[] slices(int index, int length) {
+
+            shared = true;
+
+            return views(index, length);
+        }
+
+        // Copies [index, index + dst.remaining()) into dst.
+        void get(int index, ByteBuffer dst) {
+
+            for (ByteBuffer view : views(index, dst.remaining())) dst.put(view);
+        }
+
+        ByteBuffer[] views(int index, int length) {
+
+            checkIndex(index, length);
+
+            int at = index + offset;
+
+            int i = 0;
+
+            while (i < count - 1 && at >= chunks[i].position()) at -= chunks[i++].position();
+
+            ByteBuffer[] views = new ByteBuffer[chunksSpanned(i, at, length)];
+
+            for (int v = 0; v < views.length; v++, i++, at = 0) {
+
+                int n = Math.min(length, chunks[i].position() - at);
+
+                ByteBuffer view = chunks[i].duplicate();
+
+                view.limit(at + n).position(at);
+
+                views[v] = view.slice();
+
+                length -= n;
+            }
+
+            return views;
+        }
+
+        // Marks n bytes as consumed.
+        void skip(int n) {
+
+            checkIndex(0, n);
+
+            offset += n;
+
+            readable -= n;
+        }
+
+        // Drops fully consumed chunks; an empty buffer holds none.
+        void compact() {
+
+            int consumed = 0;
+
+            while (consumed < count && offset >= chunks[consumed].position()) {
+
+                offset -= chunks[consumed].position();
+
+                retire(chunks[consumed++]);
+            }
+
+            if (consumed > 0) {
+
+                System.arraycopy(chunks, consumed, chunks, 0, count - consumed);
+
+                Arrays.fill(chunks, count - consumed, count, null);
+
+                count -= consumed;
+            }
+        }
+
+        // All views handed out so far are dead; returns every chunk
+        // that holds no unconsumed data to the pool.
+        void recycle() {
+
+            for (ByteBuffer chunk : retired) Buffers.pool.release(chunk);
+
+            retired.clear();
+
+            shared = false;
+
+            compact();
+        }
+
+        void release() {
+
+            for (int i = 0; i < count; i++) {
+
+                Buffers.pool.release(chunks[i]);
+
+                chunks[i] = null;
+            }
+
+            count = 0;
+
+            offset = 0;
+
+            readable = 0;
+
+            for (ByteBuffer chunk : retired) Buffers.pool.release(chunk);
+
+            retired.clear();
+
+            shared = false;
+        }
+
+        void retire(ByteBuffer chunk) {
+
+            if (shared) retired.add(chunk); else Buffers.pool.release(chunk);
+        }
+
+        ByteBuffer writableTail() {
+
+            if (count > 0 && chunks[count - 1].hasRemaining()) return chunks[count - 1];
+
+            if (count == chunks.length) chunks = Arrays.copyOf(chunks, count * 2);
+
+            return chunks[count++] = Buffers.pool.acquire(CHUNK_SIZE);
+        }
+
+        int chunksSpanned(int i, int at, int length) {
+
+            int spanned = 0;
+
+            for (; length > 0; i++, at = 0, spanned++) length -= chunks[i].position() - at;
+
+            return spanned;
+        }
+
+        void checkIndex(int index, int length) {
+
+            if (index < 0 || length < 0 || index + length > readable) {
+
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length + ", readable " + readable);
+            }
+        }
+    }
+
+
+    // -- OUTBOUND QUEUE --------------------------------
+    // Per-connection queue of buffers waiting to be written. A
+    // flush hands as many of them as possible to the channel in
+    // one gathering write (writev), so a burst of small responses
+    // costs one syscall instead of one per response. Buffers that
+    // were queued as pooled go back to the pool once written.
+    //
+    // File regions queue in between buffers, e.g. behind their
+    // response header, and are written on their own once they
+    // reach the head; see FileRegion. They hold no memory and do
+    // not count against the water marks or the budget.
+    //
+    // Spilling (reactor.outbound.spill, off by default): once more
+    // than that many bytes of a queue are in memory, whatever is
+    // added next is copied into a memory-mapped SpillSegment and
+    // queued as a view of the mapping. The kernel may write those
+    // pages out to the file, so a consumer that is slow but alive
+    // costs disk, not heap, and nothing is dropped. Spilled bytes
+    // still count against the water marks, not against the budget.
+    //
+    // Backpressure: once more than the high water mark is queued,
+    // or the queues of all connections together exceed the global
+    // budget, the queue reports itself paused and its connection
+    // stops reading until it has drained below the low mark.
+    //
+    static final class OutboundQueue {
+
+        // Buffers handed to one gathering write.
+        static final int MAX_GATHER = 64;
+
+        static final long LOW_WATER_MARK = Long.getLong("reactor.outbound.low", 32 * 1024);
+
+        static final long HIGH_WATER_MARK = Long.getLong("reactor.outbound.high", 64 * 1024);
+
+        static final long BUDGET = Long.getLong("reactor.outbound.budget", 256L << 20);
+
+        // In-memory bytes of one queue beyond which it spills, 0 = never.
+        static final long SPILL_THRESHOLD = Long.getLong("reactor.outbound.spill", 0);
+
+        // Bytes queued across all connections.
+        static final AtomicLong queued = new AtomicLong();
+
+        static final LongAdder highWaterMarkPauses = new LongAdder();
+
+        static final LongAdder budgetPauses = new LongAdder();
+
+        static final LongAdder resumes = new LongAdder();
+
+        static final LongAdder spilledBytes = new LongAdder();
+
+        final long lowWaterMark;
+
+        final long highWaterMark;
+
+        final long spillThreshold;
+
+        boolean paused;
+
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        ByteBuffer[] buffers = new ByteBuffer[16];
+
+        boolean[] pooled = new boolean[16];
+
+        // Non-null where the entry is a file region instead of a buffer.
+        FileRegion[] regions = new FileRegion[16];
+
+        // Non-null where the buffer is a view of a spill segment.
+        SpillSegment[] segments = new SpillSegment[16];
+
+        // Segment spilled buffers are appended to.
+        SpillSegment spill;
+
+        int head;
+
+        int size;
+
+        long pending;
+
+        // The part of 'pending' that is not spilled.
+        long memory;
+
+
+        OutboundQueue() { this(LOW_WATER_MARK, HIGH_WATER_MARK, SPILL_THRESHOLD); }
+
+        OutboundQueue(long _lowWaterMark, long _highWaterMark) { this(_lowWaterMark, _highWaterMark, SPILL_THRESHOLD); }
+
+        OutboundQueue(long _lowWaterMark, long _highWaterMark, long _spillThreshold) {
+
+            checkArgument(0 <= _lowWaterMark && _lowWaterMark <= _highWaterMark, "low water mark above high water mark");
+
+            checkArgument(_spillThreshold >= 0, "negative spill threshold");
+
+            lowWaterMark = _lowWaterMark;
+
+            highWaterMark = _highWaterMark;
+
+            spillThreshold = _spillThreshold;
+
+            if (spillThreshold > 0) SpillSegment.prepare();
+        }
+
+
+        // Queues a flipped buffer. Pooled buffers are released after
+        // they have been written; all others are merely dropped.
+        void add(ByteBuffer buffer, boolean release) {
+
+            int n = buffer.remaining();
+
+            if (spillThreshold > 0 && memory + n > spillThreshold) spill(buffer);
+
+            long total;
+
+            if (buffer.hasRemaining()) {
+
+                int kept = buffer.remaining();
+
+                append(buffer, release, null);
+
+                memory += kept;
+
+                total = queued.addAndGet(kept);
+            }
+            else {
+
+                if (release) Buffers.pool.release(buffer);
+
+                total = queued.get();
+            }
+
+            pending += n;
+
+            if (paused) return;
+
+            if (pending > highWaterMark) {
+
+                paused = true;
+
+                highWaterMarkPauses.increment();
+            }
+            else if (total > BUDGET) {
+
+                paused = true;
+
+                budgetPauses.increment();
+            }
+        }
+
+        // Queues a file region; it is released (and its file closed,
+        // if it owns it) once written or when the queue is released.
+        void add(FileRegion region) {
+
+            if (size == buffers.length) grow();
+
+            int tail = (head + size++) & (buffers.length - 1);
+
+            buffers[tail] = null;
+
+            pooled[tail] = false;
+
+            regions[tail] = region;
+
+            segments[tail] = null;
+        }
+
+        void append(ByteBuffer buffer, boolean release, SpillSegment segment) {
+
+            if (size == buffers.length) grow();
+
+            int tail = (head + size++) & (buffers.length - 1);
+
+            buffers[tail] = buffer;
+
+            pooled[tail] = release;
+
+            regions[tail] = null;
+
+            segments[tail] = segment;
+        }
+
+        // Copies as much of the buffer as possible into spill segments,
+        // one entry per segment it lands in. What is left (no segment
+        // prepared yet, the disk is full) stays in memory.
+        void spill(ByteBuffer buffer) {
+
+            while (buffer.hasRemaining()) {
+
+                if (spill != null && spill.writable() == 0) {
+
+                    spill.seal();
+
+                    spill = null;
+                }
+
+                if (spill == null && (spill = SpillSegment.acquire()) == null) return;
+
+                ByteBuffer view = spill.append(buffer);
+
+                append(view, false, spill);
+
+                spilledBytes.add(view.remaining());
+            }
+        }
+
+        // Writes until the queue is empty or the channel stops taking
+        // data. Returns the number of bytes written.
+        long flush(GatheringByteChannel channel) throws IOException {
+
+            long total = 0;
+
+            while (size > 0) {
+
+                FileRegion region = regions[head];
+
+                if (region != null) {
+
+                    long written = region.remaining > 0 ? region.transferTo(channel) : 0;
+
+                    total += written;
+
+                    Metrics.wrote(written, region.remaining > 0);
+
+                    // The socket send buffer is full, resume on OP_WRITE.
+                    if (region.remaining > 0) break;
+
+                    remove();
+
+                    continue;
+                }
+
+                // Buffers up to the next region.
+                int n = 0;
+
+                while (n < Math.min(size, MAX_GATHER) && regions[(head + n) & (buffers.length - 1)] == null) {
+
+                    gather[n] = buffers[(head + n) & (buffers.length - 1)];
+
+                    n++;
+                }
+
+                long inMemory = memoryIn(n);
+
+                long written = channel.write(gather, 0, n);
+
+                long freed = inMemory - memoryIn(n);
+
+                Arrays.fill(gather, 0, n, null);
+
+                total += written;
+
+                pending -= written;
+
+                memory -= freed;
+
+                queued.addAndGet(-freed);
+
+                int completed = 0;
+
+                while (completed < n && !buffers[head].hasRemaining()) {
+
+                    remove();
+
+                    completed++;
+                }
+
+                Metrics.wrote(written, completed < n);
+
+                // Partial write, the socket send buffer is full.
+                if (completed < n) break;
+            }
+
+            if (paused && pending <= lowWaterMark) {
+
+                paused = false;
+
+                resumes.increment();
+            }
+
+            return total;
+        }
+
+        // Unwritten in-memory bytes of the first n gathered buffers.
+        long memoryIn(int n) {
+
+            long bytes = 0;
+
+            for (int i = 0; i < n; i++) {
+
+                if (segments[(head + i) & (buffers.length - 1)] == null) bytes += gather[i].remaining();
+            }
+
+            return bytes;
+        }
+
+        boolean isEmpty() { return size == 0; }
+
+        long pendingBytes() { return pending; }
+
+        // The connection should not read (and produce more output).
+        boolean isPaused() { return paused; }
+
+        void release() {
+
+            while (size > 0) remove();
+
+            if (spill != null) spill.seal();
+
+            spill = null;
+
+            queued.addAndGet(-memory);
+
+            pending = 0;
+
+            memory = 0;
+
+            paused = false;
+        }
+
+        void remove() {
+
+            if (pooled[head]) Buffers.pool.release(buffers[head]);
+
+            if (regions[head] != null) regions[head].release();
+
+            if (segments[head] != null) segments[head].removed();
+
+            buffers[head] = null;
+
+            regions[head] = null;
+
+            segments[head] = null;
+
+            head = (head + 1) & (buffers.length - 1);
+
+            size--;
+        }
+
+        void grow() {
+
+            ByteBuffer[] grownBuffers = new ByteBuffer[buffers.length * 2];
+
+            boolean[] grownPooled = new boolean[buffers.length * 2];
+
+            FileRegion[] grownRegions = new FileRegion[buffers.length * 2];
+
+            SpillSegment[] grownSegments = new SpillSegment[buffers.length * 2];
+
+            for (int i = 0; i < size; i++) {
+
+                grownBuffers[i] = buffers[(head + i) & (buffers.length - 1)];
+
+                grownPooled[i] = pooled[(head + i) & (buffers.length - 1)];
+
+                grownRegions[i] = regions[(head + i) & (buffers.length - 1)];
+
+                grownSegments[i] = segments[(head + i) & (buffers.length - 1)];
+            }
+
+            buffers = grownBuffers;
+
+            pooled = grownPooled;
+
+            regions = grownRegions;
+
+            segments = grownSegments;
+
+            head = 0;
+        }
+    }
+
+    // -- FILE REGION -----------------------------------
+    // [position, position + count) of a file, sent without passing
+    // through user space: FileChannel.transferTo, i.e. sendfile()
+    // on Linux, from the page cache straight into the socket. A
+    // partial transfer just advances the region; the next flush
+    // continues where it stopped.
+    //
+    // transferTo only pays off towards a socket or pipe; for any
+    // other channel (and where the file's provider does not
+    // support it, or with reactor.file.transferTo=false) the
+    // region is written from a read-only mapping instead, at most
+    // MAP_CHUNK bytes mapped at a time.
+    //
+    static final class FileRegion {
+
+        static final boolean TRANSFER_TO = Boolean.parseBoolean(System.getProperty("reactor.file.transferTo", "true"));
+
+        static final long MAP_CHUNK = 8L << 20;
+
+        final FileChannel file;
+
+        // Close the file once the region is released.
+        final boolean owned;
+
+        long position;
+
+        long remaining;
+
+        boolean mapOnly = !TRANSFER_TO;
+
+        ByteBuffer mapped;
+
+
+        FileRegion(FileChannel _file, long _position, long _count, boolean _owned) {
+
+            checkArgument(_position >= 0 && _count >= 0, "negative position or count");
+
+            file = checkNotNull(_file);
+
+            position = _position;
+
+            remaining = _count;
+
+            owned = _owned;
+        }
+
+        // The whole file, closed after it has been sent.
+        static FileRegion of(Path path) throws IOException {
+
+            FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+
+            try {
+
+                return new FileRegion(file, 0, file.size(), true);
+
+            } catch (IOException | RuntimeException e) {
+
+                file.close();
+
+                throw e;
+            }
+        }
+
+
+        long transferTo(WritableByteChannel channel) throws IOException {
+
+            if (!mapOnly && channel instanceof SelectableChannel) {
+
+                try {
+
+                    long n = file.transferTo(position, remaining, channel);
+
+                    // Nothing to send from: the file shrank under us.
+                    if (n == 0 && position >= file.size()) throw new EOFException("file truncated at " + position);
+
+                    advance(n);
+
+                    return n;
+
+                } catch (UnsupportedOperationException e) {
+
+                    mapOnly = true;
+                }
+            }
+
+            if (mapped == null || !mapped.hasRemaining()) {
+
+                long length = Math.min(remaining, MAP_CHUNK);
+
+                if (position + length > file.size()) throw new EOFException("file truncated at " + file.size());
+
+                mapped = file.map(FileChannel.MapMode.READ_ONLY, position, length);
+            }
+
+            int n = channel.write(mapped);
+
+            advance(n);
+
+            return n;
+        }
+
+        void advance(long n) {
+
+            position += n;
+
+            remaining -= n;
+        }
+
+        void release() {
+
+            mapped = null;
+
+            if (owned) try { file.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // -- SPILL SEGMENT ---------------------------------
+    // A file of SIZE bytes, mapped read-write, that outbound queues
+    // append spilled data to and write it back out from. Its file
+    // is unlinked when the segment is closed.
+    //
+    // A segment belongs to one queue. Every append hands out a
+    // view, and the segment counts the views still queued. Once
+    // none is left, the queue's current segment starts over at
+    // offset 0, and a sealed (full) one goes back to a small free
+    // list to be reused by any queue.
+    //
+    // Creating a segment writes SIZE bytes, far too long for a
+    // reactor loop. The free list is therefore kept stocked by the
+    // spill-allocator thread, SPARE segments ahead of demand; a
+    // queue that finds it empty keeps its data in memory for now.
+    //
+    static final class SpillSegment {
+
+        static final int SIZE = Integer.getInteger("reactor.outbound.spill.segment", 16 << 20);
+
+        static final Path DIR = Paths.get(System.getProperty("reactor.outbound.spill.dir", System.getProperty("java.io.tmpdir")));
+
+        static final int MAX_FREE = 4;
+
+        static final int SPARE = 1;
+
+        static final Queue<SpillSegment> free = new ConcurrentLinkedQueue<>();
+
+        static final ExecutorService allocator = Executors.newSingleThreadExecutor(runnable -> {
+
+            Thread thread = new Thread(runnable, "spill-allocator");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        // Set while an allocation task is queued or running.
+        static final AtomicBoolean preparing = new AtomicBoolean();
+
+        // Reported once per run of failed allocations.
+        static volatile boolean failing;
+
+        static final LongAdder created = new LongAdder();
+
+        final FileChannel file;
+
+        final MappedByteBuffer mapping;
+
+        int position;
+
+        // Views handed out and still queued.
+        int entries;
+
+        boolean sealed;
+
+
+        SpillSegment() throws IOException {
+
+            file = FileChannel.open(Files.createTempFile(DIR, "reactor-spill-", ".seg"),
+
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+
+            try {
+
+                // Allocate the blocks now: storing into a hole of the
+                // mapping on a full disk is a SIGBUS, not an exception.
+                ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+
+                for (long at = 0; at < SIZE; at += zeros.capacity()) {
+
+                    zeros.clear();
+
+                    zeros.limit((int) Math.min(zeros.capacity(), SIZE - at));
+
+                    while (zeros.hasRemaining()) file.write(zeros, at + zeros.position());
+                }
+
+                mapping = file.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            }
+            catch (IOException | RuntimeException e) {
+
+                file.close();
+
+                throw e;
+            }
+
+            created.increment();
+        }
+
+        // A prepared segment, or null if none is ready yet.
+        static SpillSegment acquire() {
+
+            SpillSegment segment = free.poll();
+
+            prepare();
+
+            return segment;
+        }
+
+        // Tops the free list up to SPARE segments, off the caller's thread.
+        static void prepare() {
+
+            if (free.size() >= SPARE || !preparing.compareAndSet(false, true)) return;
+
+            allocator.execute(() -> {
+
+                try {
+
+                    while (free.size() < SPARE) free.offer(new SpillSegment());
+
+                    failing = false;
+                }
+                catch (IOException e) {
+
+                    if (!failing) Logger.warn("could not create spill segment in " + DIR, e);
+
+                    failing = true;
+                }
+                finally {
+
+                    preparing.set(false);
+                }
+            });
+        }
+
+
+        int writable() { return SIZE - position; }
+
+        // Copies as much of the buffer as fits; returns a view of the
+        // copy, ready to be written.
+        ByteBuffer append(ByteBuffer buffer) {
+
+            int n = Math.min(buffer.remaining(), writable());
+
+            ByteBuffer source = buffer.duplicate();
+
+            source.limit(source.position() + n);
+
+            ByteBuffer view = mapping.duplicate();
+
+            view.position(position);
+
+            view.put(source);
+
+            view.flip();
+
+            view.position(position);
+
+            buffer.position(buffer.position() + n);
+
+            position += n;
+
+            entries++;
+
+            return view;
+        }
+
+        void removed() {
+
+            if (--entries > 0) return;
+
+            if (sealed) recycle(); else position = 0;
+        }
+
+        // No more appends; recycled once drained.
+        void seal() {
+
+            sealed = true;
+
+            if (entries == 0) recycle();
+        }
+
+        void recycle() {
+
+            position = 0;
+
+            sealed = false;
+
+            if (free.size() < MAX_FREE) free.offer(this);
+
+            else try { file.close(); } catch (IOException ignored) {}
+        }
+    }
+}
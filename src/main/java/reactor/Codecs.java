@@ -0,0 +1,199 @@
+package reactor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// ------------------------------------------------------------
+//                           CODECS
+// ------------------------------------------------------------
+// Built-in $decode and $encode stages.
+//
+public enum Codecs {
+    ;
+    // -- LENGTH FIELD FRAME DECODER --------------------
+    // Frames carry their length in a fixed-width field at a fixed
+    // offset from the start of the frame:
+    //
+    //    | offset bytes | length (width bytes) | length bytes |
+    //
+    // One decode() call extracts every complete frame from the
+    // input as zero-copy views and leaves a trailing partial
+    // frame where it is. With 'strip' the views cover only the
+    // payload, otherwise the whole frame including its header.
+    //
+    static final class LengthFieldFrameDecoder implements Events.$decode<ByteBuffer[]> {
+
+        final int offset;
+
+        final int width;
+
+        final ByteOrder order;
+
+        final int maxFrameLength;
+
+        final boolean strip;
+
+
+        LengthFieldFrameDecoder(int _offset, int _width, ByteOrder _order, int _maxFrameLength, boolean _strip) {
+
+            checkArgument(_offset >= 0, "negative length field offset");
+
+            checkArgument(_width >= 1 && _width <= 8, "length field must be 1 to 8 bytes wide");
+
+            offset = _offset;
+
+            width = _width;
+
+            order = checkNotNull(_order);
+
+            maxFrameLength = _maxFrameLength;
+
+            strip = _strip;
+        }
+
+        // 4 byte big-endian length in front of the payload.
+        LengthFieldFrameDecoder(int _maxFrameLength, boolean _strip) {
+
+            this(0, 4, ByteOrder.BIG_ENDIAN, _maxFrameLength, _strip);
+        }
+
+
+        public void decode(Buffers.CompositeBuffer input, List<ByteBuffer[]> frames) throws IOException {
+
+            int header = offset + width;
+
+            int readable = input.readableBytes();
+
+            int at = 0;
+
+            while (readable - at >= header) {
+
+                long length = length(input, at + offset);
+
+                if (length < 0 || length > maxFrameLength - header) {
+
+                    throw new IOException("frame length " + length + " exceeds " + maxFrameLength + " bytes");
+                }
+
+                if (readable - at - header < length) break;
+
+                frames.add(strip
+
+                        ? input.slices(at + header, (int) length)
+
+                        : input.slices(at, header + (int) length));
+
+                at += header + (int) length;
+            }
+
+            input.skip(at);
+        }
+
+        long length(Buffers.CompositeBuffer input, int index) {
+
+            long length = 0;
+
+            for (int i = 0; i < width; i++) {
+
+                int b = input.getByte(index + (order == ByteOrder.BIG_ENDIAN ? i : width - 1 - i)) & 0xFF;
+
+                length = (length << 8) | b;
+            }
+
+            return length;
+        }
+    }
+
+    // -- LENGTH FIELD FRAME ENCODER --------------------
+    // Counterpart of a stripping decoder: queues a pooled header
+    // in front of each payload, the payload views themselves are
+    // queued without copying.
+    //
+    static final class LengthFieldFrameEncoder implements Events.$encode<ByteBuffer[]> {
+
+        final int width;
+
+        final ByteOrder order;
+
+
+        LengthFieldFrameEncoder(int _width, ByteOrder _order) {
+
+            checkArgument(_width >= 1 && _width <= 8, "length field must be 1 to 8 bytes wide");
+
+            width = _width;
+
+            order = checkNotNull(_order);
+        }
+
+
+        public void encode(List<ByteBuffer[]> payloads, Buffers.OutboundQueue output) {
+
+            for (ByteBuffer[] payload : payloads) {
+
+                long length = 0;
+
+                for (ByteBuffer view : payload) length += view.remaining();
+
+                output.add(header(length, width, order), true);
+
+                for (ByteBuffer view : payload) output.add(view, false);
+            }
+        }
+    }
+
+    // -- FILE REGION ENCODER ---------------------------
+    // Frames whose payload is a file region: the length header
+    // is queued as a pooled buffer, the file behind it goes out
+    // via transferTo. A null response becomes an empty frame.
+    //
+    static final class FileRegionEncoder implements Events.$encode<Buffers.FileRegion> {
+
+        final int width;
+
+        final ByteOrder order;
+
+
+        FileRegionEncoder(int _width, ByteOrder _order) {
+
+            checkArgument(_width >= 1 && _width <= 8, "length field must be 1 to 8 bytes wide");
+
+            width = _width;
+
+            order = checkNotNull(_order);
+        }
+
+
+        public void encode(List<Buffers.FileRegion> regions, Buffers.OutboundQueue output) {
+
+            for (Buffers.FileRegion region : regions) {
+
+                output.add(header(region == null ? 0 : region.remaining, width, order), true);
+
+                if (region != null) output.add(region);
+            }
+        }
+    }
+
+
+    // Pooled length field, flipped.
+    static ByteBuffer header(long length, int width, ByteOrder order) {
+
+        ByteBuffer header = Buffers.pool.acquire(width);
+
+        for (int i = 0; i < width; i++) {
+
+            int shift = 8 * (order == ByteOrder.BIG_ENDIAN ? width - 1 - i : i);
+
+            header.put((byte) (length >>> shift));
+        }
+
+        header.flip();
+
+        return header;
+    }
+}
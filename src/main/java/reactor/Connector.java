@@ -0,0 +1,435 @@
+package reactor;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// ------------------------------------------------------------
+//                          CONNECTOR
+// ------------------------------------------------------------
+// Client-side counterpart of the Acceptor. A connection attempt
+// is started on a reactor thread, waits for OP_CONNECT on that
+// reactor's selector and, once established, is handed to the
+// same kind of handler factory the acceptor uses. Handlers hence
+// serve inbound and outbound connections alike.
+//
+// Connects go round robin over the sub-reactors of the given
+// reactor, or to the reactor itself if it has none.
+//
+public class Connector {
+
+    static final long CONNECT_TIMEOUT = Long.getLong("reactor.connect.timeout", 10_000);
+
+    final Reactor[] loops;
+
+    final AtomicInteger next = new AtomicInteger();
+
+
+    Connector(Reactor reactor) {
+
+        loops = reactor.subReactors.length == 0 ? new Reactor[] { reactor } : reactor.subReactors;
+    }
+
+
+    <H extends Handlers.Handler> CompletableFuture<H> connect(InetSocketAddress address, Handlers.HandlerFactory<H> factory) {
+
+        Reactor loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+
+        CompletableFuture<H> future = new CompletableFuture<>();
+
+        loop.execute(() -> {
+
+            SocketChannel channel = null;
+
+            try {
+
+                channel = SocketChannel.open();
+
+                channel.configureBlocking(false);
+
+                channel.socket().setTcpNoDelay(true);
+
+                if (channel.connect(address)) {
+
+                    future.complete(factory.create(loop, channel));
+                }
+                else {
+
+                    new Connecting<>(loop, channel, factory, future);
+                }
+            }
+            catch (IOException | RuntimeException e) {
+
+                close(channel);
+
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+
+    // -- CONNECTING ------------------------------------
+    // Attachment of a key waiting for OP_CONNECT.
+    //
+    static final class Connecting<H extends Handlers.Handler> implements Runnable {
+
+        final Reactor loop;
+
+        final SocketChannel channel;
+
+        final Handlers.HandlerFactory<H> factory;
+
+        final CompletableFuture<H> future;
+
+        final Timers.Timeout timeout;
+
+
+        Connecting(Reactor _loop, SocketChannel _channel, Handlers.HandlerFactory<H> _factory, CompletableFuture<H> _future) throws IOException {
+
+            loop = _loop;
+
+            channel = _channel;
+
+            factory = _factory;
+
+            future = _future;
+
+            timeout = new Timers.Timeout(() -> fail(new ConnectException("connect timed out after " + CONNECT_TIMEOUT + " ms")));
+
+            channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+
+            loop.timers.schedule(timeout, CONNECT_TIMEOUT);
+        }
+
+
+        public void run() {
+
+            try {
+
+                if (!channel.finishConnect()) return;
+
+                loop.timers.cancel(timeout);
+
+                future.complete(factory.create(loop, channel));
+            }
+            catch (IOException | RuntimeException e) {
+
+                fail(e);
+            }
+        }
+
+        void fail(Throwable e) {
+
+            loop.timers.cancel(timeout);
+
+            close(channel);
+
+            future.completeExceptionally(e);
+        }
+    }
+
+
+    // -- CONNECTION POOL -------------------------------
+    // Connections to one endpoint, kept between min and max. A
+    // connection is checked out exclusively and returned with
+    // release(). LIFO checkout keeps reusing the most recently
+    // returned (warm) connections and lets the rest age out;
+    // FIFO spreads calls evenly over all of them.
+    //
+    // Unhealthy connections are evicted on checkout, on release
+    // and by a periodic sweep on a reactor timer, which also
+    // drops connections idle for longer than maxIdle (down to
+    // min) and tops the pool up to min again. start() runs the
+    // first sweep. See Benchmarks.PooledCalls for a client.
+    //
+    static final class ConnectionPool<H extends Handlers.Handler & Handlers.Connection> {
+
+        enum Order { FIFO, LIFO }
+
+        static final long SWEEP_MILLIS = 1000;
+
+        final Connector connector;
+
+        final InetSocketAddress endpoint;
+
+        final Handlers.HandlerFactory<H> factory;
+
+        final int min;
+
+        final int max;
+
+        final Order order;
+
+        final long maxIdleMillis;
+
+        final Predicate<H> healthy;
+
+        final ArrayDeque<Idle<H>> idle = new ArrayDeque<>();
+
+        final ArrayDeque<CompletableFuture<H>> waiters = new ArrayDeque<>();
+
+        final Reactor sweeper;
+
+        final Timers.Timeout sweep;
+
+        // Connected plus connecting.
+        int open;
+
+        boolean closed;
+
+
+        static final class Idle<H> {
+
+            final H connection;
+
+            final long since = Timers.now();
+
+            Idle(H _connection) { connection = _connection; }
+        }
+
+
+        ConnectionPool(Connector _connector, InetSocketAddress _endpoint, Handlers.HandlerFactory<H> _factory,
+
+                       int _min, int _max, Order _order, long _maxIdleMillis, Predicate<H> _healthy) {
+
+            checkArgument(0 <= _min && _min <= _max && _max > 0, "need 0 <= min <= max, max > 0");
+
+            connector = checkNotNull(_connector);
+
+            endpoint = checkNotNull(_endpoint);
+
+            factory = checkNotNull(_factory);
+
+            min = _min;
+
+            max = _max;
+
+            order = checkNotNull(_order);
+
+            maxIdleMillis = _maxIdleMillis;
+
+            healthy = checkNotNull(_healthy);
+
+            sweeper = connector.loops[0];
+
+            sweep = new Timers.Timeout(this::sweep);
+        }
+
+        ConnectionPool(Connector _connector, InetSocketAddress _endpoint, Handlers.HandlerFactory<H> _factory, int _min, int _max, Order _order) {
+
+            this(_connector, _endpoint, _factory, _min, _max, _order, 60_000, Handlers.Connection::isOpen);
+        }
+
+
+        // Starts the sweep, which opens the first 'min' connections.
+        ConnectionPool<H> start() {
+
+            sweeper.execute(this::sweep);
+
+            return this;
+        }
+
+        // Completes with an exclusively owned connection, immediately
+        // if a healthy one is idle.
+        CompletableFuture<H> acquire() {
+
+            List<H> unhealthy = new ArrayList<>();
+
+            CompletableFuture<H> future;
+
+            synchronized (this) {
+
+                if (closed) throw new IllegalStateException("pool closed");
+
+                H connection = null;
+
+                while (connection == null && !idle.isEmpty()) {
+
+                    Idle<H> entry = order == Order.LIFO ? idle.pollLast() : idle.pollFirst();
+
+                    if (healthy.test(entry.connection)) connection = entry.connection;
+
+                    else { unhealthy.add(entry.connection); open--; }
+                }
+
+                if (connection != null) {
+
+                    future = CompletableFuture.completedFuture(connection);
+                }
+                else {
+
+                    future = new CompletableFuture<>();
+
+                    waiters.addLast(future);
+
+                    if (open < max) openOne();
+                }
+            }
+
+            for (H connection : unhealthy) connection.shutdown();
+
+            return future;
+        }
+
+        void release(H connection) {
+
+            CompletableFuture<H> waiter = null;
+
+            boolean discard;
+
+            synchronized (this) {
+
+                discard = closed || !healthy.test(connection);
+
+                if (discard) {
+
+                    open--;
+
+                    if (!waiters.isEmpty() && open < max) openOne();
+                }
+                else if ((waiter = waiters.pollFirst()) == null) {
+
+                    idle.addLast(new Idle<>(connection));
+                }
+            }
+
+            if (discard) connection.shutdown();
+
+            else if (waiter != null) waiter.complete(connection);
+        }
+
+        synchronized int size() { return open; }
+
+        synchronized int idle() { return idle.size(); }
+
+        void close() {
+
+            List<Idle<H>> connections;
+
+            List<CompletableFuture<H>> pending;
+
+            synchronized (this) {
+
+                closed = true;
+
+                connections = new ArrayList<>(idle);
+
+                pending = new ArrayList<>(waiters);
+
+                open -= idle.size();
+
+                idle.clear();
+
+                waiters.clear();
+            }
+
+            sweeper.execute(() -> sweeper.timers.cancel(sweep));
+
+            for (Idle<H> entry : connections) entry.connection.shutdown();
+
+            for (CompletableFuture<H> waiter : pending) waiter.completeExceptionally(new IllegalStateException("pool closed"));
+        }
+
+        // Caller holds the lock.
+        void openOne() {
+
+            open++;
+
+            connector.connect(endpoint, factory).whenComplete(this::connected);
+        }
+
+        void connected(H connection, Throwable error) {
+
+            CompletableFuture<H> waiter;
+
+            boolean discard = false;
+
+            synchronized (this) {
+
+                if (error != null) {
+
+                    open--;
+
+                    waiter = waiters.pollFirst();
+                }
+                else if (closed) {
+
+                    open--;
+
+                    waiter = null;
+
+                    discard = true;
+                }
+                else if ((waiter = waiters.pollFirst()) == null) {
+
+                    idle.addLast(new Idle<>(connection));
+                }
+            }
+
+            if (discard) connection.shutdown();
+
+            else if (waiter != null) {
+
+                if (error != null) waiter.completeExceptionally(error); else waiter.complete(connection);
+            }
+        }
+
+        // Runs on the sweeper's reactor thread.
+        void sweep() {
+
+            List<H> evicted = new ArrayList<>();
+
+            synchronized (this) {
+
+                if (closed) return;
+
+                long now = Timers.now();
+
+                int keep = idle.size();
+
+                for (int i = 0; i < keep; i++) {
+
+                    Idle<H> entry = idle.pollFirst();
+
+                    boolean stale = now - entry.since > maxIdleMillis && open > min;
+
+                    if (stale || !healthy.test(entry.connection)) {
+
+                        evicted.add(entry.connection);
+
+                        open--;
+                    }
+                    else {
+
+                        idle.addLast(entry);
+                    }
+                }
+
+                while (open < min) openOne();
+            }
+
+            for (H connection : evicted) connection.shutdown();
+
+            sweeper.timers.schedule(sweep, SWEEP_MILLIS);
+        }
+    }
+
+
+    static void close(SocketChannel channel) {
+
+        if (channel != null) try { channel.close(); } catch (IOException ignored) {}
+    }
+}
@@ -1,39 +1,206 @@
 package reactor;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 // ------------------------------------------------------------
 //                         EVENTS
 // ------------------------------------------------------------
+// The stages a request passes through, from the indication event
+// that brings its bytes in to the one that takes the response
+// out. Every stage works on the whole batch produced by a single
+// readiness event and declares the thread it wants to run on:
+// the I/O thread, or a worker so it does not stall the loop.
+//
 public enum Events {
     ;
+    // -- AFFINITY --------------------------------------
+    //
+    enum Affinity { IO, WORKER }
+
+    // -- STAGE -----------------------------------------
+    //
+    interface Stage {
+
+        default Affinity affinity() { return Affinity.IO; }
+    }
+
     // -- READ ------------------------------------------
     // indication event
-    static class $read {
+    interface $read extends Stage {
 
+        // Returns the number of bytes read, -1 on end of stream.
+        int read(ReadableByteChannel channel, Buffers.CompositeBuffer input) throws IOException;
     }
 
     // -- SEND ------------------------------------------
     // indication event
-    static class $send {
+    interface $send extends Stage {
 
+        long send(GatheringByteChannel channel, Buffers.OutboundQueue output) throws IOException;
     }
 
 
 
     // -- DECODE ----------------------------------------
-    //
-    static class $decode {
+    // Consumes every complete message in the input; leaves a
+    // partial one for the next read.
+    interface $decode<M> extends Stage {
 
+        void decode(Buffers.CompositeBuffer input, List<M> messages) throws IOException;
     }
 
     // -- COMPUTE ---------------------------------------
     //
-    static class $compute {
+    interface $compute<M, R> extends Stage {
 
+        void compute(List<M> requests, List<R> responses);
     }
 
     // -- ENCODE ----------------------------------------
     //
-    static class $encode {
+    interface $encode<R> extends Stage {
+
+        void encode(List<R> responses, Buffers.OutboundQueue output);
+    }
+
+
+    // -- PIPELINE --------------------------------------
+    // read -> decode -> compute -> encode -> send. Reading and
+    // sending touch the selector and always run on the I/O thread.
+    //
+    static final class Pipeline<M, R> {
+
+        final $read read;
+
+        final $decode<M> decode;
+
+        final $compute<M, R> compute;
+
+        final $encode<R> encode;
+
+        final $send send;
+
+
+        Pipeline($read _read, $decode<M> _decode, $compute<M, R> _compute, $encode<R> _encode, $send _send) {
+
+            read = checkNotNull(_read);
+
+            decode = checkNotNull(_decode);
+
+            compute = checkNotNull(_compute);
+
+            encode = checkNotNull(_encode);
+
+            send = checkNotNull(_send);
+
+            checkArgument(read.affinity() == Affinity.IO && send.affinity() == Affinity.IO,
+
+                    "read and send must run on the I/O thread");
+        }
+
+        static <M, R> Pipeline<M, R> of($decode<M> decode, $compute<M, R> compute, $encode<R> encode) {
+
+            return new Pipeline<>(
+
+                    (channel, input) -> input.readFrom(channel), decode, compute, encode,
+
+                    (channel, output) -> output.flush(channel));
+        }
+    }
+
+
+    // Moves a compute stage off the I/O thread.
+    static <M, R> $compute<M, R> onWorker($compute<M, R> compute) {
+
+        return new $compute<M, R>() {
+
+            public void compute(List<M> requests, List<R> responses) { compute.compute(requests, responses); }
+
+            public Affinity affinity() { return Affinity.WORKER; }
+        };
+    }
+
+    // Everything readable as one message, as zero-copy views.
+    static $decode<ByteBuffer[]> raw() {
+
+        return (input, messages) -> {
+
+            int n = input.readableBytes();
+
+            if (n == 0) return;
+
+            messages.add(input.slices(0, n));
+
+            input.skip(n);
+        };
+    }
+
+    static <M> $compute<M, M> echo() {
+
+        return (requests, responses) -> responses.addAll(requests);
+    }
+
+    // Frame payloads as UTF-8 paths relative to 'root', opened as
+    // whole-file regions; null for anything that is not a regular
+    // file below root. Opens files, so best run on a worker.
+    static $compute<ByteBuffer[], Buffers.FileRegion> files(Path root) {
+
+        Path base = root.toAbsolutePath().normalize();
+
+        return (requests, responses) -> {
+
+            for (ByteBuffer[] views : requests) {
+
+                int length = 0;
+
+                for (ByteBuffer view : views) length += view.remaining();
+
+                byte[] name = new byte[length];
+
+                int at = 0;
+
+                for (ByteBuffer view : views) {
+
+                    int n = view.remaining();
+
+                    view.duplicate().get(name, at, n);
+
+                    at += n;
+                }
+
+                Path path = base.resolve(new String(name, StandardCharsets.UTF_8)).normalize();
+
+                Buffers.FileRegion region = null;
+
+                if (path.startsWith(base) && Files.isRegularFile(path)) {
+
+                    try { region = Buffers.FileRegion.of(path); } catch (IOException ignored) {}
+                }
+
+                responses.add(region);
+            }
+        };
+    }
+
+    // Queues the views as they are, without copying.
+    static $encode<ByteBuffer[]> views() {
+
+        return (responses, output) -> {
+
+            for (ByteBuffer[] views : responses) {
 
+                for (ByteBuffer view : views) output.add(view, false);
+            }
+        };
     }
 }
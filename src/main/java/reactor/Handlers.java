@@ -1,15 +1,18 @@
 package reactor;
 
-import com.sun.java.swing.plaf.windows.resources.windows;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channels;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
@@ -25,6 +28,10 @@ public enum Handlers {
 
     static final int MAX_OUT = 1024;
 
+    // Upper bound for unconsumed input per connection; the input
+    // itself grows chunk by chunk as data arrives.
+    static final int MAX_MESSAGE = 64 << 20;
+
     static final int READING = 0;
 
     static final int SENDING = 1;
@@ -45,8 +52,111 @@ public enum Handlers {
         void process();
     }
 
+    // -- HANDLER FACTORY -------------------------------
+    // Creates the handler for a freshly accepted (or connected)
+    // channel on the thread of the reactor that is going to serve
+    // it. The channel may already be registered with the reactor's
+    // selector; register() then returns the existing key.
+    //
+    interface HandlerFactory<H extends Handler> {
+
+        H create(Reactor reactor, SocketChannel channel) throws IOException;
+    }
+
+    // -- CONNECTION ------------------------------------
+    // Handler side of a connection as seen by other threads, e.g.
+    // when it sits in a client ConnectionPool. Thread-safe.
+    //
+    interface Connection {
+
+        // Queues the buffers behind any pending output.
+        void write(ByteBuffer... buffers);
+
+        // Closes the connection on its reactor thread.
+        void shutdown();
+
+        boolean isOpen();
+    }
+
+
+    // -- TIMEOUTS --------------------------------------
+    // Idle-read, idle-write and request timeouts of a connection,
+    // on the timer wheel of its reactor. Any of them expiring
+    // runs the handler's expiry action (usually close). Zero
+    // disables a timeout.
+    //
+    //  - idle read:  no byte received for that long.
+    //  - idle write: output pending without any progress.
+    //  - request:    a request is incomplete or being processed.
+    //
+    static final class Timeouts {
+
+        static final long IDLE_READ = Long.getLong("reactor.timeout.idleRead", 300_000);
+
+        static final long IDLE_WRITE = Long.getLong("reactor.timeout.idleWrite", 60_000);
+
+        static final long REQUEST = Long.getLong("reactor.timeout.request", 60_000);
+
+        final Timers.TimerWheel wheel;
+
+        final Timers.Timeout idleRead;
+
+        final Timers.Timeout idleWrite;
+
+        final Timers.Timeout request;
+
+
+        Timeouts(Timers.TimerWheel _wheel, Runnable expire) {
+
+            wheel = _wheel;
+
+            idleRead = new Timers.Timeout(expire);
+
+            idleWrite = new Timers.Timeout(expire);
+
+            request = new Timers.Timeout(expire);
+
+            if (IDLE_READ > 0) wheel.schedule(idleRead, IDLE_READ);
+        }
+
+
+        void read(int bytes) {
+
+            if (bytes > 0 && IDLE_READ > 0) wheel.schedule(idleRead, IDLE_READ);
+        }
+
+        void wrote(long bytes, boolean pending) {
+
+            if (!pending) wheel.cancel(idleWrite);
+
+            else if (IDLE_WRITE > 0 && (bytes > 0 || !idleWrite.isScheduled())) wheel.schedule(idleWrite, IDLE_WRITE);
+        }
+
+        // Started by the first byte of a request, stopped once no
+        // request is left unanswered.
+        void request(boolean pending) {
+
+            if (!pending) wheel.cancel(request);
+
+            else if (REQUEST > 0 && !request.isScheduled()) wheel.schedule(request, REQUEST);
+        }
+
+        void cancel() {
+
+            wheel.cancel(idleRead);
+
+            wheel.cancel(idleWrite);
+
+            wheel.cancel(request);
+        }
+    }
+
 
     // -- HANDLER IMPL I --------------------------------
+    // Persistent connection: once a response is out the handler
+    // goes back to READING with its buffers compacted, not freed.
+    // Requests pipelined behind the current batch wait in the
+    // input (or the socket) and are served in arrival order.
     //
     static final class HandlerStateObjectPattern implements Handler {
 
@@ -113,29 +223,38 @@ public enum Handlers {
         // information about the data into a single object. The Buffer class and its specialized subclasses
         // define a API for processing data buffers.
         //
-        ByteBuffer output;
+        final Buffers.OutboundQueue output = new Buffers.OutboundQueue();
+
+        final Buffers.CompositeBuffer input = new Buffers.CompositeBuffer(MAX_MESSAGE);
+
+        final Events.$decode<ByteBuffer[]> decoder;
+
+        // Complete frames of the last read, as views into the input.
+        final List<ByteBuffer[]> frames = new ArrayList<>();
 
-        ByteBuffer input;
+        final Timeouts timeouts;
 
 
-        HandlerStateObjectPattern(Selector selector, SocketChannel _socket) throws IOException {
+        HandlerStateObjectPattern(Reactor reactor, SocketChannel _socket) throws IOException {
 
-            // Nondirect buffer! There is a heap array backing this buffer
-            output = ByteBuffer.allocate(MAX_OUT);
+            this(reactor, _socket, new Codecs.LengthFieldFrameDecoder(MAX_MESSAGE, false));
+        }
+
+        HandlerStateObjectPattern(Reactor reactor, SocketChannel _socket, Events.$decode<ByteBuffer[]> _decoder) throws IOException {
 
-            input = ByteBuffer.allocate(MAX_IN);
+            decoder = _decoder;
+
+            timeouts = new Timeouts(reactor.timers, this::close);
 
             socket = _socket;
 
             socket.configureBlocking(false);
 
-            key = socket.register(selector, 0);
+            key = socket.register(reactor.selector, 0);
 
             key.attach(this);
 
             key.interestOps(OP_READ);
-
-            selector.wakeup();
         }
 
 
@@ -149,14 +268,25 @@ public enum Handlers {
 
             } catch (IOException e) {
 
-                e.printStackTrace();
+                close();
             }
         }
 
 
         public void read() throws IOException {
 
-            socket.read(input);
+            int n = input.readFrom(socket);
+
+            if (n < 0) {
+
+                close();
+
+                return;
+            }
+
+            timeouts.read(n);
+
+            timeouts.request(input.readableBytes() > 0);
 
             if (inputIsComplete()) {
 
@@ -164,91 +294,677 @@ public enum Handlers {
 
                 state = SENDING;
 
-                key.interestOps(OP_WRITE);
+                // Most responses fit into the socket buffer right away,
+                // no need to wait a select round for OP_WRITE.
+                send();
             }
         }
 
         public void send() throws IOException {
 
-            socket.write(output);
+            timeouts.wrote(output.flush(socket), !outputIsComplete());
+
+            if (outputIsComplete()) {
+
+                timeouts.request(input.readableBytes() > 0);
+
+                input.recycle();
+
+                state = READING;
+
+                key.interestOps(OP_READ);
+            }
+            else {
+
+                key.interestOps(OP_WRITE);
+            }
+        }
+
+        // Decodes every frame the last read completed.
+        public boolean inputIsComplete() {
+
+            try {
+
+                decoder.decode(input, frames);
 
-            if (outputIsComplete()) key.cancel();
+            } catch (IOException e) {
+
+                frames.clear();
+
+                close();
+            }
+
+            return !frames.isEmpty();
+        }
+
+        public boolean outputIsComplete() { return output.isEmpty(); }
+
+        // Echoes the frames in order, header included.
+        public void process() {
+
+            for (ByteBuffer[] frame : frames) {
+
+                for (ByteBuffer view : frame) output.add(view, false);
+            }
+
+            frames.clear();
         }
 
-        public boolean inputIsComplete() { throw new NotImplementedException(); }
+        void close() {
 
-        public boolean outputIsComplete() { throw new NotImplementedException(); }
+            if (!socket.isOpen()) return;
 
-        public void process() { throw new NotImplementedException(); }
+            timeouts.cancel();
+
+            key.cancel();
+
+            try { socket.close(); } catch (IOException ignored) {}
+
+            Metrics.closed();
+
+            input.release();
+
+            output.release();
+        }
     }
 
     // -- HANDLER IMPL II -------------------------------
+    // The reactor thread only reads and decodes; process() runs
+    // on a bounded worker pool. The result is handed back to the
+    // reactor thread through its task queue, which flips the key
+    // to OP_WRITE. While PROCESSING the key has no interest set,
+    // so the buffers are owned by exactly one thread at a time and
+    // no locking is needed.
     //
     static final class HandlerThreadPool implements Handler {
 
-        //static Pooled TODO
+        // Bounded, so a compute backlog turns into backpressure: when
+        // the queue is full the reactor thread runs the task itself
+        // and stops reading until it is done.
+        static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+
+                Runtime.getRuntime().availableProcessors(),
+
+                Runtime.getRuntime().availableProcessors(),
+
+                60, TimeUnit.SECONDS,
+
+                new ArrayBlockingQueue<>(4096),
+
+                runnable -> {
+
+                    Thread thread = new Thread(runnable, "handler-worker");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                },
+
+                new ThreadPoolExecutor.CallerRunsPolicy());
 
         static final int PROCESSING = 3;
 
+        final Reactor reactor;
+
         final SocketChannel socket;
 
         final SelectionKey key;
 
         int state = READING;
 
-        ByteBuffer output;
+        final Buffers.OutboundQueue output = new Buffers.OutboundQueue();
+
+        final Buffers.CompositeBuffer input = new Buffers.CompositeBuffer(MAX_MESSAGE);
 
-        ByteBuffer input;
+        final Timeouts timeouts;
 
+        // A timeout fired while the request was on a worker.
+        boolean expired;
 
-        HandlerThreadPool(Selector selector, SocketChannel _socket) throws IOException {
 
-            output = ByteBuffer.allocate(MAX_OUT);
+        HandlerThreadPool(Reactor _reactor, SocketChannel _socket) throws IOException {
 
-            input = ByteBuffer.allocate(MAX_IN);
+            reactor = _reactor;
+
+            timeouts = new Timeouts(reactor.timers, this::expire);
 
             socket = _socket;
 
             socket.configureBlocking(false);
 
-            key = socket.register(selector, 0);
+            key = socket.register(reactor.selector, 0);
 
             key.attach(this);
 
             key.interestOps(OP_READ);
+        }
+
+
+        public void run() {
+
+            try {
+
+                if (state == READING) read();
 
-            selector.wakeup();
+                else if (state == SENDING) send();
+
+            } catch (IOException e) {
+
+                close();
+            }
         }
 
 
-        public synchronized void read() throws IOException {
+        public void read() throws IOException {
+
+            int n = input.readFrom(socket);
 
-            socket.read(input);
+            if (n < 0) {
 
-            if(inputIsComplete()) {
+                close();
+
+                return;
+            }
+
+            timeouts.read(n);
+
+            timeouts.request(input.readableBytes() > 0);
+
+            if (inputIsComplete()) {
 
                 state = PROCESSING;
+
+                key.interestOps(0);
+
+                pool.execute(this::processAndHandOff);
             }
         }
 
-        public void send() throws IOException {
+        // Runs on a worker.
+        void processAndHandOff() {
+
+            process();
 
+            reactor.execute(this::handOff);
         }
 
-        public boolean outputIsComplete() {
-            return false;
+        // Back on the reactor thread.
+        void handOff() {
+
+            if (!key.isValid()) return;
+
+            state = SENDING;
+
+            if (expired) {
+
+                close();
+
+                return;
+            }
+
+            try {
+
+                send();
+
+            } catch (IOException e) {
+
+                close();
+            }
         }
 
-        public boolean inputIsComplete() {
-            return false;
+        public void send() throws IOException {
+
+            timeouts.wrote(output.flush(socket), !outputIsComplete());
+
+            if (outputIsComplete()) {
+
+                timeouts.request(false);
+
+                input.recycle();
+
+                state = READING;
+
+                key.interestOps(OP_READ);
+            }
+            else {
+
+                key.interestOps(OP_WRITE);
+            }
         }
 
+        public boolean outputIsComplete() { return output.isEmpty(); }
+
+        public boolean inputIsComplete() { return input.readableBytes() > 0; }
+
+        // The compute step. Echoes the request by queueing views of
+        // the input; they stay valid until the next read compacts it.
         public void process() {
 
+            int n = input.readableBytes();
+
+            for (ByteBuffer view : input.slices(0, n)) output.add(view, false);
+
+            input.skip(n);
+        }
+
+        // Never pull the buffers from under a worker.
+        void expire() {
+
+            if (state == PROCESSING) expired = true; else close();
+        }
+
+        void close() {
+
+            if (!socket.isOpen()) return;
+
+            timeouts.cancel();
+
+            key.cancel();
+
+            try { socket.close(); } catch (IOException ignored) {}
+
+            Metrics.closed();
+
+            input.release();
+
+            output.release();
         }
+    }
+
+    // -- HANDLER IMPL III ------------------------------
+    // Sends back whatever it reads. Reference workload for the
+    // multi-reactor mode.
+    //
+    static final class HandlerEcho implements Handler {
+
+        final SocketChannel socket;
+
+        final SelectionKey key;
+
+        int state = READING;
+
+        final ByteBuffer buffer;
+
+        final Timeouts timeouts;
+
+
+        HandlerEcho(Reactor reactor, SocketChannel _socket) throws IOException {
+
+            buffer = Buffers.pool.acquire(MAX_IN);
+
+            timeouts = new Timeouts(reactor.timers, this::close);
+
+            socket = _socket;
+
+            socket.configureBlocking(false);
+
+            key = socket.register(reactor.selector, 0);
+
+            key.attach(this);
+
+            key.interestOps(OP_READ);
+        }
+
 
         public void run() {
 
+            try {
+
+                if (state == READING) read();
+
+                else if (state == SENDING) send();
+
+            } catch (IOException e) {
+
+                close();
+            }
+        }
+
+
+        public void read() throws IOException {
+
+            int n = socket.read(buffer);
+
+            Metrics.read(n);
+
+            if (n < 0) {
+
+                close();
+
+                return;
+            }
+
+            timeouts.read(n);
+
+            if (inputIsComplete()) {
+
+                timeouts.request(true);
+
+                process();
+
+                state = SENDING;
+
+                send();
+            }
+        }
+
+        public void send() throws IOException {
+
+            int written = socket.write(buffer);
+
+            Metrics.wrote(written, buffer.hasRemaining());
+
+            timeouts.wrote(written, !outputIsComplete());
+
+            if (outputIsComplete()) {
+
+                timeouts.request(false);
+
+                buffer.clear();
+
+                state = READING;
+
+                key.interestOps(OP_READ);
+            }
+            else {
+
+                key.interestOps(OP_WRITE);
+            }
+        }
+
+        public boolean inputIsComplete() { return buffer.position() > 0; }
+
+        public boolean outputIsComplete() { return !buffer.hasRemaining(); }
+
+        public void process() { buffer.flip(); }
+
+        void close() {
+
+            if (!socket.isOpen()) return;
+
+            timeouts.cancel();
+
+            key.cancel();
+
+            try { socket.close(); } catch (IOException ignored) {}
+
+            Metrics.closed();
+
+            Buffers.pool.release(buffer);
+        }
+    }
+
+    // -- HANDLER IMPL IV -------------------------------
+    // Drives an Events.Pipeline. Each stage runs on the thread it
+    // declares; the handler hops to the worker pool and back via
+    // the reactor task queue just like HandlerThreadPool, and the
+    // key has no interest set while a batch is in flight.
+    //
+    // Otherwise the connection is full duplex: it keeps reading
+    // (and queueing responses in order) while earlier responses
+    // are still being written, until the output queue pauses it
+    // at its high water mark. SENDING means output is pending.
+    //
+    static final class HandlerPipeline<M, R> implements Handler, Connection {
+
+        static final int DECODE  = 0;
+
+        static final int COMPUTE = 1;
+
+        static final int ENCODE  = 2;
+
+        static final int DONE    = 3;
+
+        final Reactor reactor;
+
+        final SocketChannel socket;
+
+        final SelectionKey key;
+
+        final Events.Pipeline<M, R> pipeline;
+
+        int state = READING;
+
+        final Buffers.CompositeBuffer input = new Buffers.CompositeBuffer(MAX_MESSAGE);
+
+        final Buffers.OutboundQueue output = new Buffers.OutboundQueue();
+
+        // Batch of the current readiness event, reused across events.
+        final List<M> requests = new ArrayList<>();
+
+        final List<R> responses = new ArrayList<>();
+
+        final Timeouts timeouts;
+
+        // A timeout fired while the batch was on a worker.
+        boolean expired;
+
+        // Written while a worker owned the output queue.
+        final List<ByteBuffer> deferred = new ArrayList<>();
+
+
+        HandlerPipeline(Reactor _reactor, SocketChannel _socket, Events.Pipeline<M, R> _pipeline) throws IOException {
+
+            reactor = _reactor;
+
+            pipeline = _pipeline;
+
+            timeouts = new Timeouts(reactor.timers, this::expire);
+
+            socket = _socket;
+
+            socket.configureBlocking(false);
+
+            key = socket.register(reactor.selector, 0);
+
+            key.attach(this);
+
+            key.interestOps(OP_READ);
+        }
+
+
+        public void run() {
+
+            try {
+
+                int ready = key.readyOps();
+
+                if ((ready & OP_WRITE) != 0) send();
+
+                // Sending may have paused reading.
+                if ((ready & OP_READ) != 0 && (key.interestOps() & OP_READ) != 0) read();
+
+            } catch (IOException | CancelledKeyException e) {
+
+                close();
+            }
+        }
+
+
+        public void read() throws IOException {
+
+            int n = pipeline.read.read(socket, input);
+
+            if (n < 0) {
+
+                close();
+
+                return;
+            }
+
+            timeouts.read(n);
+
+            timeouts.request(input.readableBytes() > 0);
+
+            if (inputIsComplete()) {
+
+                state = HandlerThreadPool.PROCESSING;
+
+                key.interestOps(0);
+
+                process();
+            }
+        }
+
+        public void send() throws IOException {
+
+            long written = output.isEmpty() ? 0 : pipeline.send.send(socket, output);
+
+            timeouts.wrote(written, !outputIsComplete());
+
+            if (outputIsComplete()) input.recycle();
+
+            state = outputIsComplete() ? READING : SENDING;
+
+            key.interestOps((output.isPaused() ? 0 : OP_READ) | (outputIsComplete() ? 0 : OP_WRITE));
+        }
+
+        public boolean inputIsComplete() { return input.readableBytes() > 0; }
+
+        public boolean outputIsComplete() { return output.isEmpty(); }
+
+        public void process() { advance(DECODE); }
+
+        // Runs the stages from the given one on, until one of them
+        // wants another thread; it continues there.
+        void advance(int stage) {
+
+            boolean onReactor = Thread.currentThread() == reactor.thread;
+
+            try {
+
+                for (; stage < DONE; stage++) {
+
+                    Events.Affinity affinity = stage(stage).affinity();
+
+                    int next = stage;
+
+                    if (affinity == Events.Affinity.WORKER && onReactor) {
+
+                        HandlerThreadPool.pool.execute(() -> advance(next));
+
+                        return;
+                    }
+
+                    if (affinity == Events.Affinity.IO && !onReactor) {
+
+                        reactor.execute(() -> advance(next));
+
+                        return;
+                    }
+
+                    if (stage == DECODE) pipeline.decode.decode(input, requests);
+
+                    else if (stage == COMPUTE) pipeline.compute.compute(requests, responses);
+
+                    else pipeline.encode.encode(responses, output);
+
+                    // Nothing complete yet, wait for more input.
+                    if (stage == DECODE && requests.isEmpty()) break;
+                }
+            }
+            catch (IOException | RuntimeException e) {
+
+                if (onReactor) close(); else reactor.execute(this::close);
+
+                return;
+            }
+
+            if (onReactor) complete(); else reactor.execute(this::complete);
+        }
+
+        Events.Stage stage(int stage) {
+
+            return stage == DECODE ? pipeline.decode : stage == COMPUTE ? pipeline.compute : pipeline.encode;
+        }
+
+        // Back on the reactor thread with the batch encoded.
+        void complete() {
+
+            if (!key.isValid()) return;
+
+            requests.clear();
+
+            responses.clear();
+
+            if (expired) {
+
+                close();
+
+                return;
+            }
+
+            for (ByteBuffer buffer : deferred) output.add(buffer, false);
+
+            deferred.clear();
+
+            timeouts.request(input.readableBytes() > 0);
+
+            try {
+
+                send();
+
+            } catch (IOException e) {
+
+                close();
+            }
+        }
+
+        public void write(ByteBuffer... buffers) {
+
+            if (Thread.currentThread() != reactor.thread) {
+
+                reactor.execute(() -> write(buffers));
+
+                return;
+            }
+
+            if (!socket.isOpen()) return;
+
+            if (state == HandlerThreadPool.PROCESSING) {
+
+                Collections.addAll(deferred, buffers);
+
+                return;
+            }
+
+            for (ByteBuffer buffer : buffers) output.add(buffer, false);
+
+            try {
+
+                send();
+
+            } catch (IOException e) {
+
+                close();
+            }
+        }
+
+        public void shutdown() { reactor.execute(this::expire); }
+
+        public boolean isOpen() { return socket.isOpen(); }
+
+        // Never pull the buffers from under a worker.
+        void expire() {
+
+            if (state == HandlerThreadPool.PROCESSING) expired = true; else close();
+        }
+
+        void close() {
+
+            if (!socket.isOpen()) return;
+
+            timeouts.cancel();
+
+            key.cancel();
+
+            try { socket.close(); } catch (IOException ignored) {}
+
+            Metrics.closed();
+
+            input.release();
+
+            output.release();
         }
     }
 
@@ -0,0 +1,734 @@
+package reactor;
+
+import utils.Ascii;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+// ------------------------------------------------------------
+//                            LOAD
+// ------------------------------------------------------------
+// Client-side load generator for the frame protocol (4 byte
+// big-endian length, then the payload) that the echo servers
+// answer, e.g. Reactor ... frames or ThreadPerConnection ...
+// frames.
+//
+// CLOSED LOOP: every connection keeps 'depth' requests in flight
+// and sends the next one as soon as a response comes back. The
+// offered load adapts to the server, so a stalled server is
+// asked less, and its stall shows up in a few samples only.
+//
+// OPEN LOOP: requests are due at a fixed total 'rate', spread
+// evenly over the connections. A request that cannot be sent
+// on time (all 'depth' slots of its connection busy) waits in a
+// backlog. Its response time counts from when it was due, not
+// from when it was sent; that is what makes the numbers free of
+// coordinated omission. The time from the actual send is kept
+// as service time.
+//
+public enum Load {
+    ;
+    // -- HISTOGRAM -------------------------------------
+    // Log-linear histogram of non-negative longs in the spirit of
+    // HdrHistogram: values below 2^SUB_BITS are counted exactly,
+    // above that every power of two is cut into 2^(SUB_BITS-1)
+    // equal buckets, which bounds the relative error to 0.1% over
+    // the whole range. Values above MAX_VALUE are clamped.
+    //
+    static final class Histogram {
+
+        static final int SUB_BITS = 11;
+
+        static final int HALF = 1 << (SUB_BITS - 1);
+
+        // About 18 minutes in nanos.
+        static final long MAX_VALUE = 1L << 40;
+
+        final long[] counts = new long[index(MAX_VALUE) + 1];
+
+        long count;
+
+        long total;
+
+        long min = Long.MAX_VALUE;
+
+        long max;
+
+
+        void record(long value) {
+
+            value = Math.max(0, Math.min(value, MAX_VALUE));
+
+            counts[index(value)]++;
+
+            count++;
+
+            total += value;
+
+            min = Math.min(min, value);
+
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+
+            for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+
+            count += other.count;
+
+            total += other.total;
+
+            min = Math.min(min, other.min);
+
+            max = Math.max(max, other.max);
+        }
+
+        // Upper bound of the value at quantile q in [0, 1].
+        long percentile(double q) {
+
+            if (count == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++) {
+
+                seen += counts[i];
+
+                if (seen >= rank) return Math.min(highest(i), max);
+            }
+
+            return max;
+        }
+
+        double mean() { return count == 0 ? 0 : (double) total / count; }
+
+        static int index(long value) {
+
+            if (value < 2 * HALF) return (int) value;
+
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+
+            return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        // Largest value counted at the index.
+        static long highest(int index) {
+
+            if (index < 2 * HALF) return index;
+
+            int shift = index / HALF - 1;
+
+            long sub = index % HALF + HALF;
+
+            return ((sub + 1) << shift) - 1;
+        }
+
+        void json(StringBuilder out, double[] quantiles) {
+
+            out.append("{\"count\":").append(count)
+
+               .append(",\"min\":").append(count == 0 ? 0 : min)
+
+               .append(",\"mean\":").append(String.format("%.1f", mean()))
+
+               .append(",\"max\":").append(max)
+
+               .append(",\"percentiles\":{");
+
+            for (int i = 0; i < quantiles.length; i++) {
+
+                if (i > 0) out.append(',');
+
+                out.append('"').append(quantiles[i] * 100).append("\":").append(percentile(quantiles[i]));
+            }
+
+            // [highest value of bucket, count] of every non-empty bucket.
+            out.append("},\"buckets\":[");
+
+            boolean first = true;
+
+            for (int i = 0; i < counts.length; i++) {
+
+                if (counts[i] == 0) continue;
+
+                if (!first) out.append(',');
+
+                out.append('[').append(highest(i)).append(',').append(counts[i]).append(']');
+
+                first = false;
+            }
+
+            out.append("]}");
+        }
+    }
+
+
+    // -- OPTIONS ---------------------------------------
+    // key=value arguments, see main.
+    //
+    static final class Options {
+
+        final String host;
+
+        // Connections go round robin over the ports, e.g. one per
+        // node of an environment.Cluster.
+        final int[] ports;
+
+        final boolean open;
+
+        final int connections;
+
+        final int depth;
+
+        final int[] sizes;
+
+        // Requests per second over all connections, open loop only.
+        final long rate;
+
+        final long warmupNanos;
+
+        final long durationNanos;
+
+        final int threads;
+
+        final String out;
+
+
+        Options(Map<String, String> args) {
+
+            host = args.getOrDefault("host", "127.0.0.1");
+
+            ports = Arrays.stream(args.getOrDefault("port", "9090").split(",")).mapToInt(Integer::parseInt).toArray();
+
+            String mode = args.getOrDefault("mode", "closed");
+
+            checkArgument(mode.equals("closed") || mode.equals("open"), "mode is 'closed' or 'open'");
+
+            open = mode.equals("open");
+
+            connections = Integer.parseInt(args.getOrDefault("connections", "64"));
+
+            depth = Integer.parseInt(args.getOrDefault("depth", "1"));
+
+            sizes = Arrays.stream(args.getOrDefault("sizes", "64").split(",")).mapToInt(Integer::parseInt).toArray();
+
+            rate = Long.parseLong(args.getOrDefault("rate", "10000"));
+
+            warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args.getOrDefault("warmup", "2")));
+
+            durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args.getOrDefault("seconds", "10")));
+
+            threads = Integer.parseInt(args.getOrDefault("threads", "1"));
+
+            out = args.getOrDefault("out", "load.json");
+
+            checkArgument(connections > 0 && depth > 0 && threads > 0 && rate > 0, "connections, depth, threads and rate must be positive");
+
+            checkArgument(Arrays.stream(sizes).allMatch(size -> size >= 0 && size <= Session.MAX_PAYLOAD), "sizes must be within 0..%s", Session.MAX_PAYLOAD);
+        }
+    }
+
+
+    // -- SESSION ---------------------------------------
+    // One connection of the generator. Requests are appended to
+    // 'out' and written when the socket takes them; responses are
+    // parsed from 'in' frame by frame without being copied.
+    //
+    static final class Session {
+
+        static final int MAX_PAYLOAD = 64 * 1024;
+
+        final SocketChannel channel;
+
+        final SelectionKey key;
+
+        final Worker worker;
+
+        final ByteBuffer out = ByteBuffer.allocateDirect(4 * (4 + MAX_PAYLOAD));
+
+        final ByteBuffer in = ByteBuffer.allocateDirect(4 * (4 + MAX_PAYLOAD));
+
+        // Due and send times of the requests in flight, in order.
+        final LongRing due = new LongRing();
+
+        final LongRing sent = new LongRing();
+
+        // Due times of requests not sent yet (open loop).
+        final LongRing backlog = new LongRing();
+
+        // Next request due (open loop).
+        long next;
+
+        // Payload bytes of the current response still to skip, -1
+        // while its length field is incomplete.
+        long payload = -1;
+
+
+        Session(Worker _worker, SocketChannel _channel) throws IOException {
+
+            worker = _worker;
+
+            channel = _channel;
+
+            channel.configureBlocking(false);
+
+            channel.socket().setTcpNoDelay(true);
+
+            key = channel.register(worker.selector, OP_READ, this);
+        }
+
+
+        void read(long now) throws IOException {
+
+            if (channel.read(in) < 0) throw new IOException("closed by server");
+
+            in.flip();
+
+            while (true) {
+
+                if (payload < 0) {
+
+                    if (in.remaining() < 4) break;
+
+                    payload = in.getInt() & 0xFFFFFFFFL;
+                }
+
+                int skip = (int) Math.min(payload, in.remaining());
+
+                in.position(in.position() + skip);
+
+                payload -= skip;
+
+                if (payload > 0) break;
+
+                payload = -1;
+
+                worker.completed(due.poll(), sent.poll(), now);
+            }
+
+            in.compact();
+        }
+
+        // Queues as many requests as the window and the buffer allow.
+        void send(long now) throws IOException {
+
+            Options options = worker.options;
+
+            while (due.size < options.depth) {
+
+                if (options.open && backlog.size == 0) break;
+
+                int size = options.sizes[ThreadLocalRandom.current().nextInt(options.sizes.length)];
+
+                if (out.remaining() < 4 + size) break;
+
+                out.putInt(size);
+
+                ByteBuffer payload = worker.payload.duplicate();
+
+                payload.limit(size);
+
+                out.put(payload);
+
+                due.add(options.open ? backlog.poll() : now);
+
+                sent.add(now);
+            }
+
+            flush();
+        }
+
+        void flush() throws IOException {
+
+            out.flip();
+
+            channel.write(out);
+
+            out.compact();
+
+            key.interestOps(OP_READ | (out.position() > 0 ? OP_WRITE : 0));
+        }
+    }
+
+    // Growable ring of longs.
+    static final class LongRing {
+
+        long[] values = new long[16];
+
+        int head;
+
+        int size;
+
+        void add(long value) {
+
+            if (size == values.length) {
+
+                long[] grown = new long[size * 2];
+
+                for (int i = 0; i < size; i++) grown[i] = values[(head + i) & (values.length - 1)];
+
+                values = grown;
+
+                head = 0;
+            }
+
+            values[(head + size++) & (values.length - 1)] = value;
+        }
+
+        long poll() {
+
+            long value = values[head];
+
+            head = (head + 1) & (values.length - 1);
+
+            size--;
+
+            return value;
+        }
+    }
+
+
+    // -- WORKER ----------------------------------------
+    // One selector thread driving its share of the sessions, with
+    // its own histograms; they are merged once all workers ended.
+    //
+    static final class Worker implements Runnable {
+
+        final Options options;
+
+        final Selector selector;
+
+        final List<Session> sessions = new ArrayList<>();
+
+        final ByteBuffer payload = ByteBuffer.allocateDirect(Session.MAX_PAYLOAD);
+
+        final Histogram response = new Histogram();
+
+        final Histogram service = new Histogram();
+
+        // Requests between sessions of the same worker, open loop.
+        final long interval;
+
+        long start;
+
+        long measure;
+
+        long end;
+
+        long errors;
+
+
+        Worker(Options _options, int first, int sessions, long rate) throws IOException {
+
+            options = _options;
+
+            selector = Selector.open();
+
+            interval = sessions == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) * sessions / Math.max(1, rate);
+
+            for (int i = 0; i < sessions; i++) {
+
+                int port = options.ports[(first + i) % options.ports.length];
+
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(options.host, port));
+
+                this.sessions.add(new Session(this, channel));
+            }
+        }
+
+
+        public void run() {
+
+            start = System.nanoTime();
+
+            measure = start + options.warmupNanos;
+
+            end = measure + options.durationNanos;
+
+            // Staggered, so the connections do not fire in lockstep.
+            for (int i = 0; i < sessions.size(); i++) sessions.get(i).next = start + interval * i / Math.max(1, sessions.size());
+
+            try {
+
+                long now = start;
+
+                if (!options.open) for (Session session : sessions) session.send(now);
+
+                while ((now = System.nanoTime()) < end) {
+
+                    long wait = (options.open ? nextDue() : end) - now;
+
+                    // Below a millisecond select() would oversleep.
+                    if (wait < TimeUnit.MILLISECONDS.toNanos(1)) selector.selectNow();
+
+                    else selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+
+                    now = System.nanoTime();
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+
+                        Session session = (Session) key.attachment();
+
+                        try {
+
+                            if (key.isReadable()) session.read(now);
+
+                            if (key.isValid() && key.isWritable()) session.flush();
+
+                            if (!options.open) session.send(now);
+                        }
+                        catch (IOException e) {
+
+                            errors++;
+
+                            key.cancel();
+
+                            try { session.channel.close(); } catch (IOException ignored) {}
+                        }
+                    }
+
+                    selector.selectedKeys().clear();
+
+                    if (options.open) schedule(now);
+                }
+            }
+            catch (IOException e) {
+
+                errors++;
+            }
+            finally {
+
+                for (Session session : sessions) {
+
+                    try { session.channel.close(); } catch (IOException ignored) {}
+                }
+
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+
+        // Open loop: moves every request due by now to its session's
+        // backlog and sends what the windows allow.
+        void schedule(long now) {
+
+            for (Session session : sessions) {
+
+                if (!session.channel.isOpen()) continue;
+
+                while (session.next <= now) {
+
+                    session.backlog.add(session.next);
+
+                    session.next += interval;
+                }
+
+                try {
+
+                    session.send(now);
+                }
+                catch (IOException e) {
+
+                    errors++;
+
+                    try { session.channel.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        long nextDue() {
+
+            long next = end;
+
+            for (Session session : sessions) {
+
+                if (session.channel.isOpen()) next = Math.min(next, session.next);
+            }
+
+            return next;
+        }
+
+        void completed(long due, long sent, long now) {
+
+            if (due < measure) return;
+
+            response.record(now - due);
+
+            service.record(now - sent);
+        }
+    }
+
+
+    static final double[] QUANTILES = { 0.5, 0.75, 0.9, 0.99, 0.999, 0.9999, 1.0 };
+
+    // Arguments are key=value pairs, all optional:
+    //
+    //   host=127.0.0.1 port=9090  server, port=9090,9091 spreads the connections
+    //   mode=closed|open          see above
+    //   connections=64 depth=1    connections, requests in flight per connection
+    //   sizes=64,1024             payload sizes, picked at random per request
+    //   rate=10000                requests/s in total (open loop)
+    //   warmup=2 seconds=10       not recorded, then recorded
+    //   threads=1                 selector threads
+    //   out=load.json             machine-readable report
+    //
+    public static void main(String[] args) throws Exception {
+
+        Map<String, String> map = new HashMap<>();
+
+        for (String arg : args) {
+
+            int eq = arg.indexOf('=');
+
+            checkArgument(eq > 0, "expected key=value, got %s", arg);
+
+            map.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        Options options = new Options(map);
+
+        int threads = Math.min(options.threads, options.connections);
+
+        Worker[] workers = new Worker[threads];
+
+        for (int i = 0, first = 0; i < threads; i++) {
+
+            int sessions = options.connections / threads + (i < options.connections % threads ? 1 : 0);
+
+            workers[i] = new Worker(options, first, sessions, options.rate * sessions / options.connections);
+
+            first += sessions;
+        }
+
+        Thread[] loops = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) (loops[i] = new Thread(workers[i], "load-" + i)).start();
+
+        for (Thread loop : loops) loop.join();
+
+        Histogram response = new Histogram();
+
+        Histogram service = new Histogram();
+
+        long errors = 0;
+
+        for (Worker worker : workers) {
+
+            response.add(worker.response);
+
+            service.add(worker.service);
+
+            errors += worker.errors;
+        }
+
+        double seconds = options.durationNanos / 1e9;
+
+        System.out.println(Ascii.TextTable.of(
+
+                Ascii.TextTable.Column.of(String.class, "mode"),
+
+                Ascii.TextTable.Column.of(Integer.class, "connections"),
+
+                Ascii.TextTable.Column.of(Integer.class, "depth"),
+
+                Ascii.TextTable.Column.of(String.class, "sizes"),
+
+                Ascii.TextTable.Column.of(String.class, "target/s"),
+
+                Ascii.TextTable.Column.of(String.class, "completed/s"),
+
+                Ascii.TextTable.Column.of(Long.class, "errors")).apply(
+
+                new String[] { options.open ? "open" : "closed" },
+
+                new Integer[] { options.connections },
+
+                new Integer[] { options.depth },
+
+                new String[] { Arrays.toString(options.sizes) },
+
+                new String[] { options.open ? String.format("%,d", options.rate) : "-" },
+
+                new String[] { String.format("%,.0f", response.count / seconds) },
+
+                new Long[] { errors }));
+
+        String[] quantiles = new String[QUANTILES.length];
+
+        String[] responses = new String[QUANTILES.length];
+
+        String[] services = new String[QUANTILES.length];
+
+        for (int i = 0; i < QUANTILES.length; i++) {
+
+            quantiles[i] = String.format("%.2f", QUANTILES[i] * 100);
+
+            responses[i] = String.format("%,.1f", response.percentile(QUANTILES[i]) / 1e3);
+
+            services[i] = String.format("%,.1f", service.percentile(QUANTILES[i]) / 1e3);
+        }
+
+        System.out.println(Ascii.TextTable.of(
+
+                Ascii.TextTable.Column.of(String.class, "percentile"),
+
+                Ascii.TextTable.Column.of(String.class, "response us"),
+
+                Ascii.TextTable.Column.of(String.class, "service us")).apply(quantiles, responses, services));
+
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\"mode\":\"").append(options.open ? "open" : "closed")
+
+            .append("\",\"connections\":").append(options.connections)
+
+            .append(",\"depth\":").append(options.depth)
+
+            .append(",\"sizes\":").append(Arrays.toString(options.sizes).replace(" ", ""))
+
+            .append(",\"rate\":").append(options.open ? options.rate : 0)
+
+            .append(",\"durationNanos\":").append(options.durationNanos)
+
+            .append(",\"completed\":").append(response.count)
+
+            .append(",\"errors\":").append(errors)
+
+            .append(",\"unit\":\"ns\",\"response\":");
+
+        response.json(json, QUANTILES);
+
+        json.append(",\"service\":");
+
+        service.json(json, QUANTILES);
+
+        json.append("}\n");
+
+        try (Writer writer = Files.newBufferedWriter(Paths.get(options.out), StandardCharsets.UTF_8)) {
+
+            writer.write(json.toString());
+        }
+
+        System.out.println("report written to " + options.out);
+    }
+}
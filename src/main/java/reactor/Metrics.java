@@ -0,0 +1,327 @@
+package reactor;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// ------------------------------------------------------------
+//                          METRICS
+// ------------------------------------------------------------
+// Counters of all reactors (and thread-per-connection engines)
+// in the JVM. Every counter is a LongAdder, striped per CPU, so
+// the loops never contend on a cache line and recording never
+// allocates once the stripes exist. The dispatch histogram is a
+// LongAdder per power of two.
+//
+// ENABLED is a compile-time constant: with false javac drops
+// the bodies of the recording methods, the JIT inlines what is
+// left, and nothing remains on the hot path. Flip it and
+// rebuild.
+//
+// Readers get a Snapshot, either directly or via the MXBean
+// 'reactor:type=Metrics' (registered with the first reactor).
+//
+public enum Metrics {
+    ;
+    static final boolean ENABLED = true;
+
+    static final LongAdder selects = new LongAdder();
+
+    // Selects that came back without a ready key: timer ticks,
+    // task wakeups, spins.
+    static final LongAdder emptySelects = new LongAdder();
+
+    static final LongAdder keysDispatched = new LongAdder();
+
+    static final LongAdder accepts = new LongAdder();
+
+    static final LongAdder closes = new LongAdder();
+
+    static final LongAdder bytesIn = new LongAdder();
+
+    static final LongAdder bytesOut = new LongAdder();
+
+    // Writes that left bytes behind because the send buffer was full.
+    static final LongAdder partialWrites = new LongAdder();
+
+    // Bucket i counts dispatches of [2^(i-1), 2^i) nanos.
+    static final LongAdder[] dispatchNanos = new LongAdder[64];
+
+    static {
+
+        for (int i = 0; i < dispatchNanos.length; i++) dispatchNanos[i] = new LongAdder();
+    }
+
+    static final AtomicBoolean registered = new AtomicBoolean();
+
+
+    // -- RECORDING -------------------------------------
+    //
+    static void selected(int keys) {
+
+        if (!ENABLED) return;
+
+        selects.increment();
+
+        if (keys == 0) emptySelects.increment(); else keysDispatched.add(keys);
+    }
+
+    static void dispatched(long nanos) {
+
+        if (!ENABLED) return;
+
+        dispatchNanos[64 - Long.numberOfLeadingZeros(Math.max(0, nanos))].increment();
+    }
+
+    static void accepted() { if (ENABLED) accepts.increment(); }
+
+    static void closed() { if (ENABLED) closes.increment(); }
+
+    static void read(long bytes) { if (ENABLED && bytes > 0) bytesIn.add(bytes); }
+
+    static void wrote(long bytes, boolean partial) {
+
+        if (!ENABLED) return;
+
+        if (bytes > 0) bytesOut.add(bytes);
+
+        if (partial) partialWrites.increment();
+    }
+
+
+    // -- SNAPSHOT --------------------------------------
+    // Totals at one point in time; since() turns two of them into
+    // the activity in between, for rates.
+    //
+    static final class Snapshot {
+
+        final long nanos;
+
+        final long selects;
+
+        final long emptySelects;
+
+        final long keysDispatched;
+
+        final long accepts;
+
+        final long closes;
+
+        final long bytesIn;
+
+        final long bytesOut;
+
+        final long partialWrites;
+
+        final long[] dispatchNanos;
+
+
+        Snapshot(long _nanos, long _selects, long _emptySelects, long _keysDispatched, long _accepts,
+
+                 long _closes, long _bytesIn, long _bytesOut, long _partialWrites, long[] _dispatchNanos) {
+
+            nanos = _nanos;
+
+            selects = _selects;
+
+            emptySelects = _emptySelects;
+
+            keysDispatched = _keysDispatched;
+
+            accepts = _accepts;
+
+            closes = _closes;
+
+            bytesIn = _bytesIn;
+
+            bytesOut = _bytesOut;
+
+            partialWrites = _partialWrites;
+
+            dispatchNanos = _dispatchNanos;
+        }
+
+
+        // Activity since the earlier snapshot; 'nanos' becomes the
+        // length of the interval.
+        Snapshot since(Snapshot earlier) {
+
+            long[] dispatch = new long[dispatchNanos.length];
+
+            for (int i = 0; i < dispatch.length; i++) dispatch[i] = dispatchNanos[i] - earlier.dispatchNanos[i];
+
+            return new Snapshot(nanos - earlier.nanos, selects - earlier.selects, emptySelects - earlier.emptySelects,
+
+                    keysDispatched - earlier.keysDispatched, accepts - earlier.accepts, closes - earlier.closes,
+
+                    bytesIn - earlier.bytesIn, bytesOut - earlier.bytesOut, partialWrites - earlier.partialWrites, dispatch);
+        }
+
+        // Of an interval from since().
+        double perSecond(long count) { return nanos <= 0 ? 0 : count * 1e9 / nanos; }
+
+        double keysPerSelect() {
+
+            long nonEmpty = selects - emptySelects;
+
+            return nonEmpty == 0 ? 0 : (double) keysDispatched / nonEmpty;
+        }
+
+        long dispatches() {
+
+            long n = 0;
+
+            for (long count : dispatchNanos) n += count;
+
+            return n;
+        }
+
+        // Upper bound (a power of two) of the dispatch time at q.
+        long dispatchNanos(double q) {
+
+            long n = dispatches();
+
+            if (n == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+
+            long seen = 0;
+
+            for (int i = 0; i < dispatchNanos.length; i++) {
+
+                seen += dispatchNanos[i];
+
+                if (seen >= rank) return i == 0 ? 0 : (1L << i) - 1;
+            }
+
+            return Long.MAX_VALUE;
+        }
+
+        public String toString() {
+
+            return String.format("selects=%d empty=%d keys/select=%.2f accepts=%d closes=%d in=%d out=%d partialWrites=%d dispatch p50<=%dns p99<=%dns p99.9<=%dns",
+
+                    selects, emptySelects, keysPerSelect(), accepts, closes, bytesIn, bytesOut, partialWrites,
+
+                    dispatchNanos(0.5), dispatchNanos(0.99), dispatchNanos(0.999));
+        }
+    }
+
+    static Snapshot snapshot() {
+
+        long[] dispatch = new long[dispatchNanos.length];
+
+        for (int i = 0; i < dispatch.length; i++) dispatch[i] = dispatchNanos[i].sum();
+
+        return new Snapshot(System.nanoTime(), selects.sum(), emptySelects.sum(), keysDispatched.sum(), accepts.sum(),
+
+                closes.sum(), bytesIn.sum(), bytesOut.sum(), partialWrites.sum(), dispatch);
+    }
+
+
+    // -- MXBEAN ----------------------------------------
+    // Totals, plus rates over the interval since the previous
+    // rate was read (at least a second, so that a console polling
+    // every attribute in turn sees consistent values).
+    //
+    public interface MetricsMXBean {
+
+        long getSelects();
+
+        long getEmptySelects();
+
+        double getKeysPerSelect();
+
+        long getAccepts();
+
+        long getCloses();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        long getPartialWrites();
+
+        long getDispatchNanosP50();
+
+        long getDispatchNanosP99();
+
+        long getDispatchNanosP999();
+
+        double getSelectsPerSecond();
+
+        double getBytesInPerSecond();
+
+        double getBytesOutPerSecond();
+    }
+
+    static final class MetricsBean implements MetricsMXBean {
+
+        static final long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+        Snapshot last = snapshot();
+
+        Snapshot window = last.since(last);
+
+
+        public long getSelects() { return selects.sum(); }
+
+        public long getEmptySelects() { return emptySelects.sum(); }
+
+        public double getKeysPerSelect() { return snapshot().keysPerSelect(); }
+
+        public long getAccepts() { return accepts.sum(); }
+
+        public long getCloses() { return closes.sum(); }
+
+        public long getBytesIn() { return bytesIn.sum(); }
+
+        public long getBytesOut() { return bytesOut.sum(); }
+
+        public long getPartialWrites() { return partialWrites.sum(); }
+
+        public long getDispatchNanosP50() { return snapshot().dispatchNanos(0.5); }
+
+        public long getDispatchNanosP99() { return snapshot().dispatchNanos(0.99); }
+
+        public long getDispatchNanosP999() { return snapshot().dispatchNanos(0.999); }
+
+        public double getSelectsPerSecond() { Snapshot w = window(); return w.perSecond(w.selects); }
+
+        public double getBytesInPerSecond() { Snapshot w = window(); return w.perSecond(w.bytesIn); }
+
+        public double getBytesOutPerSecond() { Snapshot w = window(); return w.perSecond(w.bytesOut); }
+
+        synchronized Snapshot window() {
+
+            Snapshot now = snapshot();
+
+            if (now.nanos - last.nanos >= WINDOW) {
+
+                window = now.since(last);
+
+                last = now;
+            }
+
+            return window;
+        }
+    }
+
+    // Once per JVM; a failure costs the export, not the reactor.
+    static void register() {
+
+        if (!ENABLED || !registered.compareAndSet(false, true)) return;
+
+        try {
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName("reactor:type=Metrics"));
+
+        } catch (JMException e) {
+
+            e.printStackTrace();
+        }
+    }
+}
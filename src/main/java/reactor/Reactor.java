@@ -1,13 +1,26 @@
 package reactor;
 
+import utils.Logger;
+
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // ------------------------------------------------------------
 //                          REACTOR
@@ -62,30 +75,123 @@ import java.util.Set;
 // requested service.
 //
 //
+// MULTIPLE REACTORS
+// A single  reactor  saturates  one core  long  before the NIC
+// is saturated. The  main reactor therefore only  accepts  and
+// hands each  new channel to one of  N sub-reactors, each with
+// its own selector and thread. A  channel is registered by the
+// sub-reactor  thread  itself  (via  its  task  queue),  since
+// register() from  a foreign thread  blocks  on  the  selector
+// lock while that selector sits in select().
+//
+//
+// SELECT STRATEGY
+// Blocking in select()  costs a futex wake  and a context switch
+// per event  that arrives on an idle loop. Where latency matters
+// more than CPU, a loop can instead poll with selectNow(): either
+// for a number of empty rounds before it blocks again (SPIN), or
+// for good (BUSY_POLL, one core per loop). While a loop is not
+// blocked,  tasks submitted  via execute()  need no wakeup;  the
+// wakenUp flag stays set and submitters skip selector.wakeup().
+//
+//
 public class Reactor implements Runnable {
 
+    // Replace the selector's HashSet of selected keys by an array,
+    // see SelectedKeys. Read whenever a reactor is constructed.
+    static boolean optimizeSelector = Boolean.parseBoolean(System.getProperty("reactor.selector.optimize", "true"));
+
+    enum SelectStrategy { BLOCKING, SPIN, BUSY_POLL }
+
+    // Read whenever a reactor is constructed, like optimizeSelector.
+    static SelectStrategy selectStrategy = SelectStrategy.valueOf(System.getProperty("reactor.select.strategy", "BLOCKING").toUpperCase());
+
+    // Empty selectNow() rounds a SPIN loop makes before it blocks.
+    static int spinSelects = Integer.getInteger("reactor.select.spins", 10_000);
+
+    static final long TICK_MILLIS = 50;
+
+    static final int WHEEL_SIZE = 512;
+
     final ServerSocketChannel serverSocket;
 
     final Selector selector;
 
+    // Null if the key set could not (or should not) be replaced.
+    final SelectedKeys selectedKeys;
+
+    // Idle and request timeouts of the connections on this loop.
+    final Timers.TimerWheel timers = new Timers.TimerWheel(TICK_MILLIS, WHEEL_SIZE);
+
+    final Handlers.HandlerFactory<?> factory;
+
+    final SelectStrategy strategy = selectStrategy;
+
+    final int spins = spinSelects;
+
+    // Empty selectNow() rounds since the last event or task.
+    int idleSpins;
+
+    // Empty in single-reactor mode and for the sub-reactors themselves.
+    final Reactor[] subReactors;
+
+    // Work handed over from other threads, drained by the loop thread.
+    final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    // Set while a wakeup is outstanding, or while the loop is not
+    // blocked in select(), so that any number of concurrent
+    // submitters cost at most one selector.wakeup().
+    final AtomicBoolean wakenUp = new AtomicBoolean(true);
+
+    volatile Thread thread;
+
+    int next;
+
     // -- ACCEPTOR --------------------------------------
     //
     class Acceptor implements Runnable {
 
+        // Accept keeps failing; reported once until it succeeds again.
+        boolean failing;
+
         public void run() {
 
-            try {
+            while (true) {
 
-                SocketChannel channel = serverSocket.accept();
+                SocketChannel channel;
 
-                if(channel != null) {
+                try {
 
-                    new Handlers.HandlerStateObjectPattern(selector, channel);
+                    if ((channel = serverSocket.accept()) == null) return;
+                }
+                catch (IOException e) {
+                    // e.g. out of file descriptors; retried on the next select.
+                    if (!failing) Logger.warn("accept failed", e);
+
+                    failing = true;
+
+                    return;
                 }
-            }
-            catch (IOException e) {
 
-                e.printStackTrace();
+                failing = false;
+
+                Metrics.accepted();
+
+                if (subReactors.length == 0) {
+
+                    try {
+
+                        factory.create(Reactor.this, channel);
+                    }
+                    catch (IOException e) {
+                        // e.g. reset by the peer right after accept.
+                        try { channel.close(); } catch (IOException ignored) {}
+                    }
+                }
+                else {
+
+                    subReactors[Math.floorMod(next++, subReactors.length)].register(channel);
+                }
             }
         }
     }
@@ -93,8 +199,26 @@ public class Reactor implements Runnable {
 
     Reactor(int port) throws IOException {
 
+        this(port, 0, (reactor, channel) -> new Handlers.HandlerStateObjectPattern(reactor, channel));
+    }
+
+    Reactor(int port, int loops, Handlers.HandlerFactory<?> _factory) throws IOException {
+
         selector = Selector.open();
 
+        selectedKeys = optimizeSelector ? SelectedKeys.install(selector) : null;
+
+        Metrics.register();
+
+        factory = _factory;
+
+        subReactors = new Reactor[loops];
+
+        for (int i = 0; i < loops; i++) {
+
+            subReactors[i] = new Reactor(_factory);
+        }
+
         serverSocket = ServerSocketChannel.open();
 
         serverSocket.socket().bind(new InetSocketAddress(port));
@@ -106,41 +230,397 @@ public class Reactor implements Runnable {
                 .attach(new Acceptor());
     }
 
+    // Sub-reactor, fed by the acceptor of a main reactor; with no
+    // factory a loop for outbound connections only (see Connector).
+    Reactor(Handlers.HandlerFactory<?> _factory) throws IOException {
+
+        selector = Selector.open();
+
+        selectedKeys = optimizeSelector ? SelectedKeys.install(selector) : null;
+
+        Metrics.register();
+
+        factory = _factory;
+
+        subReactors = new Reactor[0];
+
+        serverSocket = null;
+    }
+
 
     public void run() {
 
+        thread = Thread.currentThread();
+
+        Thread[] loops = new Thread[subReactors.length];
+
+        for (int i = 0; i < loops.length; i++) {
+
+            loops[i] = new Thread(subReactors[i], "sub-reactor-" + i);
+
+            loops[i].start();
+        }
+
         try {
 
             while (!Thread.interrupted()) {
 
-                selector.select();
+                select();
+
+                if (selectedKeys != null) {
+
+                    Metrics.selected(selectedKeys.size);
+
+                    dispatchSelectedKeys();
+                }
+                else {
+
+                    Set<SelectionKey> selected = selector.selectedKeys();
 
-                Set selected = selector.selectedKeys();
+                    Metrics.selected(selected.size());
 
-                Iterator it = selected.iterator();
+                    for (SelectionKey key : selected) {
 
-                while (it.hasNext()) {
+                        dispatch(key);
+                    }
 
-                    dispatch((SelectionKey) it.next());
+                    selected.clear();
                 }
 
-                selected.clear();
+                runTasks();
+
+                timers.expire(Timers.now());
             }
         }
         catch (IOException e) {
 
             e.printStackTrace();
         }
+        finally {
+
+            for (Thread loop : loops) loop.interrupt();
+
+            join(loops);
+
+            close();
+        }
+    }
+
+    // Closes the channels registered with this loop, its selector
+    // and the server socket. Called by run() on the way out, or
+    // directly for a reactor that never ran.
+    void close() {
+
+        for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+
+            try { key.channel().close(); } catch (IOException ignored) {}
+        }
+
+        try { selector.close(); } catch (IOException ignored) {}
+
+        if (serverSocket != null) try { serverSocket.close(); } catch (IOException ignored) {}
+    }
+
+    // Lets the sub-reactors close their own channels first.
+    static void join(Thread[] loops) {
+
+        boolean interrupted = false;
+
+        for (Thread loop : loops) {
+
+            while (loop.isAlive()) {
+
+                try { loop.join(); } catch (InterruptedException e) { interrupted = true; }
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
     }
 
 
+    void select() throws IOException {
+
+        if (strategy == SelectStrategy.BUSY_POLL) {
+
+            selector.selectNow();
+
+            return;
+        }
+
+        if (strategy == SelectStrategy.SPIN && idleSpins < spins) {
+
+            if (selector.selectNow() > 0 || !tasks.isEmpty()) idleSpins = 0;
+
+            else idleSpins++;
+
+            return;
+        }
+
+        idleSpins = 0;
+
+        long delay = timers.nextDelay(Timers.now());
+
+        if (delay == 0) {
+
+            selector.selectNow();
+
+            return;
+        }
+
+        // From here on submitters must wake us up. A task queued
+        // before the flag was cleared found it set and did not.
+        wakenUp.set(false);
+
+        if (!tasks.isEmpty()) selector.selectNow();
+
+        else if (delay < 0) selector.select();
+
+        else selector.select(delay);
+
+        wakenUp.set(true);
+    }
+
     void dispatch(SelectionKey key) {
 
         Runnable runnable = (Runnable) key.attachment();
 
-        if(runnable != null) {
+        if(runnable != null && key.isValid()) {
+
+            if (Metrics.ENABLED) {
 
-            runnable.run();
+                long start = System.nanoTime();
+
+                runnable.run();
+
+                Metrics.dispatched(System.nanoTime() - start);
+            }
+            else {
+
+                runnable.run();
+            }
+        }
+    }
+
+    // Indexed walk over the array filled by the selector; clears
+    // each slot as it goes so no key outlives its select.
+    void dispatchSelectedKeys() {
+
+        SelectionKey[] keys = selectedKeys.keys;
+
+        for (int i = 0; i < selectedKeys.size; i++) {
+
+            SelectionKey key = keys[i];
+
+            keys[i] = null;
+
+            dispatch(key);
+        }
+
+        selectedKeys.size = 0;
+    }
+
+    // Queues the task for the loop thread and wakes it up, unless a
+    // wakeup is already pending, the loop is not blocked, or we are
+    // on the loop thread anyway.
+    void execute(Runnable task) {
+
+        tasks.offer(task);
+
+        if (Thread.currentThread() != thread && wakenUp.compareAndSet(false, true)) {
+
+            selector.wakeup();
+        }
+    }
+
+    // Hands an accepted channel over to this reactor.
+    void register(SocketChannel channel) {
+
+        execute(() -> {
+
+            try {
+
+                factory.create(this, channel);
+            }
+            catch (IOException e) {
+                // e.g. reset by the peer before it got here.
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+        });
+    }
+
+    void runTasks() {
+
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+
+            task.run();
+        }
+    }
+
+
+    // Echo server, one sub-reactor per core unless told otherwise;
+    // 'frames' echoes length-prefixed frames, 'pool' and 'pipeline'
+    // move the (echo) compute step onto the worker pool. 'files'
+    // answers a frame holding a path below the directory given
+    // next with the file, framed by an 8 byte length.
+    public static void main(String[] args) throws IOException {
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+
+        int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String mode = args.length > 2 ? args[2] : "echo";
+
+        new Reactor(port, loops, factory(mode, args.length > 3 ? args[3] : ".")).run();
+    }
+
+    // Handlers of the main() modes; 'root' is the directory served
+    // in 'files' mode.
+    static Handlers.HandlerFactory<?> factory(String mode, String root) {
+
+        switch (mode) {
+
+            case "pool":
+
+                return Handlers.HandlerThreadPool::new;
+
+            case "frames":
+
+                return (reactor, channel) -> new Handlers.HandlerStateObjectPattern(reactor, channel);
+
+            case "files":
+
+                Path files = Paths.get(root);
+
+                return (reactor, channel) -> new Handlers.HandlerPipeline<>(reactor, channel,
+
+                        Events.Pipeline.of(new Codecs.LengthFieldFrameDecoder(Handlers.MAX_MESSAGE, true),
+
+                                Events.onWorker(Events.files(files)), new Codecs.FileRegionEncoder(8, ByteOrder.BIG_ENDIAN)));
+
+            case "pipeline":
+
+                return (reactor, channel) -> new Handlers.HandlerPipeline<>(reactor, channel,
+
+                        Events.Pipeline.of(Events.raw(), Events.onWorker(Events.echo()), Events.views()));
+
+            default:
+
+                return (reactor, channel) -> new Handlers.HandlerEcho(reactor, channel);
+        }
+    }
+
+
+    // -- SELECTED KEYS ---------------------------------
+    // The JDK  selector collects ready keys in a HashSet, which
+    // means a node allocation per ready key, an Iterator per
+    // select and a scan of the whole table on clear(). This set
+    // is swapped into the selector in its place: add() appends
+    // to an array and the reactor walks it by index. The other
+    // Set operations are never called by the selector on the hot
+    // path (contains() answering false is fine, a key is reported
+    // at most once per select).
+    //
+    static final class SelectedKeys extends AbstractSet<SelectionKey> {
+
+        SelectionKey[] keys = new SelectionKey[1024];
+
+        int size;
+
+
+        public boolean add(SelectionKey key) {
+
+            if (key == null) return false;
+
+            if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+
+            keys[size++] = key;
+
+            return true;
+        }
+
+        public boolean remove(Object o) { return false; }
+
+        public boolean contains(Object o) { return false; }
+
+        public int size() { return size; }
+
+        // Off the hot path: for whoever holds selector.selectedKeys().
+        public Iterator<SelectionKey> iterator() {
+
+            return new Iterator<SelectionKey>() {
+
+                int next;
+
+                public boolean hasNext() { return next < size; }
+
+                public SelectionKey next() {
+
+                    if (next >= size) throw new NoSuchElementException();
+
+                    return keys[next++];
+                }
+            };
+        }
+
+        public void clear() { Arrays.fill(keys, 0, size, null); size = 0; }
+
+
+        // Installs a fresh set into the selector, or returns null if the
+        // selector implementation does not allow it. Plain reflection
+        // works up to Java 8 (or with --add-opens java.base/sun.nio.ch);
+        // beyond that the final fields are written through Unsafe,
+        // looked up reflectively to keep the build free of warnings.
+        static SelectedKeys install(Selector selector) {
+
+            SelectedKeys set = new SelectedKeys();
+
+            try {
+
+                Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+
+                if (!impl.isInstance(selector)) return null;
+
+                Field selected = impl.getDeclaredField("selectedKeys");
+
+                Field publicSelected = impl.getDeclaredField("publicSelectedKeys");
+
+                try {
+
+                    selected.setAccessible(true);
+
+                    publicSelected.setAccessible(true);
+
+                    selected.set(selector, set);
+
+                    publicSelected.set(selector, set);
+                }
+                catch (RuntimeException | IllegalAccessException e) {
+
+                    Class<?> unsafeType = Class.forName("sun.misc.Unsafe");
+
+                    Field theUnsafe = unsafeType.getDeclaredField("theUnsafe");
+
+                    theUnsafe.setAccessible(true);
+
+                    Object unsafe = theUnsafe.get(null);
+
+                    Method objectFieldOffset = unsafeType.getMethod("objectFieldOffset", Field.class);
+
+                    Method putObject = unsafeType.getMethod("putObject", Object.class, long.class, Object.class);
+
+                    putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, selected), set);
+
+                    putObject.invoke(unsafe, selector, objectFieldOffset.invoke(unsafe, publicSelected), set);
+                }
+
+                return set;
+            }
+            catch (Throwable e) {
+
+                return null;
+            }
         }
     }
 }
@@ -0,0 +1,309 @@
+package reactor;
+
+import utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// ------------------------------------------------------------
+//                    THREAD PER CONNECTION
+// ------------------------------------------------------------
+// The other execution model: a blocking accept loop that serves
+// each connection on a thread of its own, with blocking reads
+// and writes and no selector at all. The scheduler (the kernel
+// for platform threads, the JVM for virtual ones) does the
+// demultiplexing the reactor does by hand.
+//
+// Connections run the same Events.Pipeline as HandlerPipeline,
+// every stage on the connection's thread; affinities are
+// ignored, a blocking thread has nothing to offload to.
+//
+// Virtual threads (Java 21) are looked up reflectively, the
+// build targets Java 8; on older runtimes, or with
+// reactor.threads.virtual=false, connections get platform
+// threads instead.
+//
+public class ThreadPerConnection implements Runnable {
+
+    static final boolean VIRTUAL = Boolean.parseBoolean(System.getProperty("reactor.threads.virtual", "true"));
+
+    static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    final ServerSocketChannel serverSocket;
+
+    final Supplier<? extends Events.Pipeline<?, ?>> pipelines;
+
+    final ThreadFactory threads;
+
+    // Open connections, closed when the accept loop ends.
+    final Set<HandlerBlocking<?, ?>> handlers = ConcurrentHashMap.newKeySet();
+
+
+    ThreadPerConnection(int port, Supplier<? extends Events.Pipeline<?, ?>> _pipelines) throws IOException {
+
+        pipelines = checkNotNull(_pipelines);
+
+        threads = threadFactory(VIRTUAL);
+
+        Metrics.register();
+
+        serverSocket = ServerSocketChannel.open();
+
+        serverSocket.socket().bind(new InetSocketAddress(port));
+    }
+
+
+    public void run() {
+
+        // Accept keeps failing; reported once until it succeeds again.
+        boolean failing = false;
+
+        try {
+
+            while (!Thread.interrupted()) {
+
+                SocketChannel channel;
+
+                try {
+
+                    channel = serverSocket.accept();
+                }
+                catch (ClosedChannelException e) {
+                    // interrupted (ClosedByInterruptException) or closed.
+                    break;
+                }
+                catch (IOException e) {
+
+                    if (!serverSocket.isOpen()) break;
+
+                    // e.g. out of file descriptors until connections close.
+                    if (!failing) Logger.warn("accept failed, retrying every " + ACCEPT_BACKOFF_MILLIS + " ms", e);
+
+                    failing = true;
+
+                    try { Thread.sleep(ACCEPT_BACKOFF_MILLIS); } catch (InterruptedException interrupted) { break; }
+
+                    continue;
+                }
+
+                failing = false;
+
+                Metrics.accepted();
+
+                try {
+
+                    serve(channel);
+                }
+                catch (IOException e) {
+                    // e.g. reset by the peer right after accept.
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            }
+        }
+        finally {
+
+            try { serverSocket.close(); } catch (IOException ignored) {}
+
+            for (HandlerBlocking<?, ?> handler : handlers) handler.shutdown();
+        }
+    }
+
+    void serve(SocketChannel channel) throws IOException {
+
+        channel.socket().setTcpNoDelay(true);
+
+        HandlerBlocking<?, ?> handler = new HandlerBlocking<>(this, channel, pipelines.get());
+
+        handlers.add(handler);
+
+        threads.newThread(handler).start();
+    }
+
+    boolean isVirtual() { return !(threads instanceof PlatformThreads); }
+
+
+    // -- HANDLER IMPL V --------------------------------
+    // One connection on its own thread. run() is the whole state
+    // machine: block in read until a request is complete, process
+    // it, block in send until the output is gone.
+    //
+    static final class HandlerBlocking<M, R> implements Handlers.Handler {
+
+        final ThreadPerConnection server;
+
+        final SocketChannel socket;
+
+        final Events.Pipeline<M, R> pipeline;
+
+        final Buffers.CompositeBuffer input = new Buffers.CompositeBuffer(Handlers.MAX_MESSAGE);
+
+        final Buffers.OutboundQueue output = new Buffers.OutboundQueue();
+
+        final List<M> requests = new ArrayList<>();
+
+        final List<R> responses = new ArrayList<>();
+
+        boolean eof;
+
+
+        HandlerBlocking(ThreadPerConnection _server, SocketChannel _socket, Events.Pipeline<M, R> _pipeline) {
+
+            server = _server;
+
+            socket = _socket;
+
+            pipeline = checkNotNull(_pipeline);
+        }
+
+
+        public void run() {
+
+            try {
+
+                while (!eof) {
+
+                    read();
+
+                    if (inputIsComplete()) {
+
+                        process();
+
+                        send();
+                    }
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // peer reset, decoder rejected the input, closed on shutdown.
+            }
+            finally {
+
+                close();
+            }
+        }
+
+        public void read() throws IOException {
+
+            eof = pipeline.read.read(socket, input) < 0;
+
+            if (input.readableBytes() > 0) pipeline.decode.decode(input, requests);
+        }
+
+        public void send() throws IOException {
+
+            while (!outputIsComplete()) pipeline.send.send(socket, output);
+
+            input.recycle();
+        }
+
+        // At least one complete request decoded.
+        public boolean inputIsComplete() { return !requests.isEmpty(); }
+
+        public boolean outputIsComplete() { return output.isEmpty(); }
+
+        public void process() {
+
+            pipeline.compute.compute(requests, responses);
+
+            pipeline.encode.encode(responses, output);
+
+            requests.clear();
+
+            responses.clear();
+        }
+
+        // On the connection's own thread, the only one that touches
+        // the buffers. The thread ends right after, so its pool cache
+        // goes back to the shared lists.
+        void close() {
+
+            server.handlers.remove(this);
+
+            shutdown();
+
+            Metrics.closed();
+
+            input.release();
+
+            output.release();
+
+            Buffers.pool.drainLocal();
+        }
+
+        // From any thread: a blocked read or write fails, and the
+        // connection's thread closes.
+        void shutdown() {
+
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+
+    // Thread.ofVirtual().name(...).factory(), if the runtime has it.
+    static ThreadFactory threadFactory(boolean virtual) {
+
+        if (virtual) {
+
+            try {
+
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+                Class<?> type = Class.forName("java.lang.Thread$Builder");
+
+                builder = type.getMethod("name", String.class, long.class).invoke(builder, "connection-", 0L);
+
+                return (ThreadFactory) type.getMethod("factory").invoke(builder);
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                // Before Java 21 (or 19 without --enable-preview).
+            }
+        }
+
+        return new PlatformThreads();
+    }
+
+    static final class PlatformThreads implements ThreadFactory {
+
+        final AtomicInteger next = new AtomicInteger();
+
+        public Thread newThread(Runnable task) {
+
+            return new Thread(task, "connection-" + next.getAndIncrement());
+        }
+    }
+
+
+    // Echo server; 'frames' echoes length-prefixed frames.
+    public static void main(String[] args) throws IOException {
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
+
+        String mode = args.length > 1 ? args[1] : "echo";
+
+        ThreadPerConnection server = mode.equals("frames")
+
+                ? new ThreadPerConnection(port, () -> Events.Pipeline.<ByteBuffer[], ByteBuffer[]>of(
+
+                        new Codecs.LengthFieldFrameDecoder(Handlers.MAX_MESSAGE, false), Events.echo(), Events.views()))
+
+                : new ThreadPerConnection(port, () -> Events.Pipeline.<ByteBuffer[], ByteBuffer[]>of(
+
+                        Events.raw(), Events.echo(), Events.views()));
+
+        System.out.println((server.isVirtual() ? "virtual" : "platform") + " threads");
+
+        server.run();
+    }
+}
@@ -0,0 +1,224 @@
+package reactor;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// ------------------------------------------------------------
+//                           TIMERS
+// ------------------------------------------------------------
+// Hashed timing wheel (Varghese & Lauck, scheme 6). Time is cut
+// into ticks; a timeout due in n ticks goes into bucket
+// (now + n) mod size, together with the number of full rounds
+// the wheel must turn before it is due. Scheduling and cancelling
+// are O(1): every bucket is an intrusive doubly linked list of
+// Timeout objects, which the caller allocates once and reuses,
+// so (re)scheduling never allocates.
+//
+// A wheel belongs to one reactor and is only touched by its
+// thread; there is no synchronization.
+//
+// Due timeouts are first moved to an extra 'expiring' bucket
+// and only then fired, one by one from its head, so a task may
+// cancel or reschedule any timeout, including the ones due in
+// the same tick.
+//
+// The wheel also tracks the earliest tick anything is due, so
+// the loop blocks until then and not just until the next tick.
+// Cancelling leaves the mark where it is; a stale mark costs one
+// early wakeup and a walk over the wheel to find the real one.
+//
+public enum Timers {
+    ;
+    static long now() { return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()); }
+
+
+    // -- TIMEOUT ---------------------------------------
+    //
+    static final class Timeout {
+
+        final Runnable task;
+
+        long rounds;
+
+        // Tick it is due in, while scheduled.
+        long due;
+
+        // -1 while not scheduled.
+        int bucket = -1;
+
+        Timeout prev;
+
+        Timeout next;
+
+
+        Timeout(Runnable _task) { task = checkNotNull(_task); }
+
+
+        boolean isScheduled() { return bucket >= 0; }
+    }
+
+    // -- TIMER WHEEL -----------------------------------
+    //
+    static final class TimerWheel {
+
+        final long tickMillis;
+
+        // One slot per tick plus the expiring list at the end.
+        final Timeout[] buckets;
+
+        final int mask;
+
+        final int expiring;
+
+        // Last tick that has been expired.
+        long tick;
+
+        // No timeout is due before this tick; may be stale (early).
+        long earliest = Long.MAX_VALUE;
+
+        int size;
+
+
+        TimerWheel(long _tickMillis, int wheelSize) {
+
+            checkArgument(_tickMillis > 0, "tick must be positive");
+
+            checkArgument(Integer.bitCount(wheelSize) == 1, "wheel size must be a power of two");
+
+            tickMillis = _tickMillis;
+
+            buckets = new Timeout[wheelSize + 1];
+
+            mask = wheelSize - 1;
+
+            expiring = wheelSize;
+
+            tick = now() / tickMillis;
+        }
+
+
+        // (Re)schedules the timeout to fire after the given delay.
+        void schedule(Timeout timeout, long delayMillis) {
+
+            if (timeout.isScheduled()) cancel(timeout);
+
+            // Round up, a timeout never fires early. Relative to the
+            // clock, not to 'tick', which lags while the loop is busy.
+            long due = Math.max(tick + 1, (now() + delayMillis + tickMillis - 1) / tickMillis);
+
+            timeout.rounds = (due - tick - 1) / expiring;
+
+            timeout.due = due;
+
+            if (due < earliest) earliest = due;
+
+            link(timeout, (int) (due & mask));
+        }
+
+        void cancel(Timeout timeout) {
+
+            if (!timeout.isScheduled()) return;
+
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+
+            else buckets[timeout.bucket] = timeout.next;
+
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+
+            timeout.prev = timeout.next = null;
+
+            timeout.bucket = -1;
+
+            size--;
+        }
+
+        // Fires every timeout due by 'nowMillis'. Returns how many fired.
+        int expire(long nowMillis) {
+
+            long target = nowMillis / tickMillis;
+
+            int fired = 0;
+
+            // Nothing to walk through after a long blocking select.
+            if (size == 0) tick = Math.max(tick, target);
+
+            while (tick < target) {
+
+                tick++;
+
+                Timeout timeout = buckets[(int) (tick & mask)];
+
+                while (timeout != null) {
+
+                    Timeout next = timeout.next;
+
+                    if (timeout.rounds == 0) {
+
+                        cancel(timeout);
+
+                        link(timeout, expiring);
+                    }
+                    else {
+
+                        timeout.rounds--;
+                    }
+
+                    timeout = next;
+                }
+
+                while ((timeout = buckets[expiring]) != null) {
+
+                    cancel(timeout);
+
+                    timeout.task.run();
+
+                    fired++;
+                }
+            }
+
+            return fired;
+        }
+
+        void link(Timeout timeout, int bucket) {
+
+            timeout.bucket = bucket;
+
+            timeout.prev = null;
+
+            timeout.next = buckets[bucket];
+
+            if (timeout.next != null) timeout.next.prev = timeout;
+
+            buckets[bucket] = timeout;
+
+            size++;
+        }
+
+        // Milliseconds until the earliest timeout is due, -1 if nothing
+        // is scheduled; the select loop sleeps at most that long.
+        long nextDelay(long nowMillis) {
+
+            if (size == 0) return -1;
+
+            if (earliest <= tick) earliest = earliestDue();
+
+            return Math.max(0, earliest * tickMillis - nowMillis);
+        }
+
+        long earliestDue() {
+
+            long min = Long.MAX_VALUE;
+
+            for (int i = 0; i < expiring; i++) {
+
+                for (Timeout timeout = buckets[i]; timeout != null; timeout = timeout.next) min = Math.min(min, timeout.due);
+            }
+
+            return min;
+        }
+
+        int size() { return size; }
+    }
+}
@@ -0,0 +1,296 @@
+package reactor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// ------------------------------------------------------------
+//                           WARMUP
+// ------------------------------------------------------------
+// Entry point of a pre-warmed node. Starts a Reactor like
+// Reactor.main, drives it with a synthetic workload over
+// loopback until the JIT has settled, and only then prints the
+// READY line an environment.Container waits for.
+//
+// The workload is round trips of length-prefixed frames, which
+// every mode but 'files' echoes verbatim ('files' is not warmed
+// up). It runs in slices; the JIT counts as settled once STABLE
+// slices in a row spent at most 2% of their time compiling and
+// kept the round trip rate within 10% of the slice before, after
+// reactor.warmup.min ms at the earliest and reactor.warmup.max
+// ms at the latest.
+//
+// measure() runs the same round trips from a client and profiles
+// the way to steady state, warm nodes against cold ones.
+//
+public enum Warmup {
+    ;
+    static final long SLICE_MILLIS = 250;
+
+    static final int STABLE = 3;
+
+    static final long MIN_MILLIS = Long.getLong("reactor.warmup.min", 1_000);
+
+    static final long MAX_MILLIS = Long.getLong("reactor.warmup.max", 30_000);
+
+    static final int CONNECTIONS = Integer.getInteger("reactor.warmup.connections", 4);
+
+    // Payload sizes, in turn; the larger ones take partial reads.
+    static final int[] SIZES = { 16, 256, 4096, 64 };
+
+
+    // -- PING PONG -------------------------------------
+    // One blocking connection, one frame in flight.
+    //
+    public static final class PingPong implements Closeable {
+
+        final SocketChannel channel;
+
+        final ByteBuffer out = ByteBuffer.allocateDirect(4 + 4096);
+
+        final ByteBuffer in = ByteBuffer.allocateDirect(4 + 4096);
+
+        int next;
+
+
+        public PingPong(int port) throws IOException {
+
+            channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+
+            channel.socket().setTcpNoDelay(true);
+        }
+
+
+        // Sends the next frame and waits for its echo.
+        public void roundTrip() throws IOException {
+
+            int size = SIZES[next++ % SIZES.length];
+
+            out.clear();
+
+            out.putInt(size).position(4 + size);
+
+            out.flip();
+
+            while (out.hasRemaining()) channel.write(out);
+
+            in.clear();
+
+            in.limit(4 + size);
+
+            while (in.hasRemaining()) if (channel.read(in) < 0) throw new EOFException("connection closed by node");
+        }
+
+        public void close() throws IOException { channel.close(); }
+    }
+
+
+    // Runs until the JIT has settled; returns the round trips made.
+    static long warmUp(int port) throws Exception {
+
+        LongAdder roundTrips = new LongAdder();
+
+        List<Thread> clients = new ArrayList<>();
+
+        List<PingPong> connections = new ArrayList<>();
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+
+            PingPong connection = new PingPong(port);
+
+            connections.add(connection);
+
+            Thread client = new Thread(() -> {
+
+                try {
+
+                    while (true) {
+
+                        connection.roundTrip();
+
+                        roundTrips.increment();
+                    }
+                }
+                catch (IOException e) {
+                    // closed when done.
+                }
+            }, "warmup-" + i);
+
+            client.setDaemon(true);
+
+            client.start();
+
+            clients.add(client);
+        }
+
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+
+        boolean timed = jit != null && jit.isCompilationTimeMonitoringSupported();
+
+        long begin = System.nanoTime();
+
+        long compiled = timed ? jit.getTotalCompilationTime() : 0;
+
+        long previous = -1;
+
+        long total = 0;
+
+        int stable = 0;
+
+        while (true) {
+
+            Thread.sleep(SLICE_MILLIS);
+
+            long count = roundTrips.sumThenReset();
+
+            total += count;
+
+            long compiledNow = timed ? jit.getTotalCompilationTime() : 0;
+
+            boolean quiet = compiledNow - compiled <= SLICE_MILLIS / 50;
+
+            boolean steady = previous > 0 && Math.abs(count - previous) <= previous / 10;
+
+            stable = quiet && steady ? stable + 1 : 0;
+
+            compiled = compiledNow;
+
+            previous = count;
+
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+            if (elapsed >= MAX_MILLIS || stable >= STABLE && elapsed >= MIN_MILLIS) break;
+        }
+
+        for (PingPong connection : connections) connection.close();
+
+        for (Thread client : clients) client.join();
+
+        return total + roundTrips.sum();
+    }
+
+
+    // -- PROFILE ---------------------------------------
+    // Round trips of one connection over time, from an origin such
+    // as the launch of the node or the moment it was handed out.
+    //
+    public static final class Profile {
+
+        public static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        // Slices averaged when looking for the steady state.
+        static final int WINDOW = 5;
+
+        // Relative to the origin; slices are counted from here on.
+        public final long firstResponseNanos;
+
+        // Round trips per slice.
+        final long[] slices;
+
+
+        Profile(long _firstResponseNanos, long[] _slices) {
+
+            firstResponseNanos = _firstResponseNanos;
+
+            slices = _slices;
+        }
+
+
+        // Median of the second half, per second.
+        public double steadyRate() {
+
+            long[] tail = Arrays.copyOfRange(slices, slices.length / 2, slices.length);
+
+            Arrays.sort(tail);
+
+            return tail.length == 0 ? 0 : tail[tail.length / 2] * 1e9 / SLICE_NANOS;
+        }
+
+        // Until the start of the first slice from which on every
+        // WINDOW slices average 90% of the steady rate or more.
+        public long steadyNanos() {
+
+            double floor = 0.9 * steadyRate() * SLICE_NANOS / 1e9 * WINDOW;
+
+            int first = Math.max(0, slices.length - WINDOW + 1);
+
+            while (first > 0 && window(first - 1) >= floor) first--;
+
+            return firstResponseNanos + first * SLICE_NANOS;
+        }
+
+        long window(int from) {
+
+            long sum = 0;
+
+            for (int i = from; i < from + WINDOW; i++) sum += slices[i];
+
+            return sum;
+        }
+    }
+
+    // Round trips against the node for 'millis' ms.
+    public static Profile measure(int port, long originNanos, long millis) throws IOException {
+
+        try (PingPong connection = new PingPong(port)) {
+
+            connection.roundTrip();
+
+            long start = System.nanoTime();
+
+            long[] slices = new long[(int) (TimeUnit.MILLISECONDS.toNanos(millis) / Profile.SLICE_NANOS)];
+
+            long now = start;
+
+            int slice;
+
+            while ((slice = (int) ((now - start) / Profile.SLICE_NANOS)) < slices.length) {
+
+                connection.roundTrip();
+
+                slices[slice]++;
+
+                now = System.nanoTime();
+            }
+
+            return new Profile(start - originNanos, slices);
+        }
+    }
+
+
+    // Warmup <port> [loops] [mode] [root], as Reactor.main.
+    public static void main(String[] args) throws Exception {
+
+        int port = Integer.parseInt(args[0]);
+
+        int loops = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        String mode = args.length > 2 ? args[2] : "echo";
+
+        Reactor reactor = new Reactor(port, loops, Reactor.factory(mode, args.length > 3 ? args[3] : "."));
+
+        Thread loop = new Thread(reactor, "reactor");
+
+        loop.start();
+
+        long begin = System.nanoTime();
+
+        long roundTrips = mode.equals("files") ? 0 : warmUp(port);
+
+        System.out.println(String.format("READY warmup=%dms roundTrips=%d", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), roundTrips));
+
+        System.out.flush();
+
+        loop.join();
+    }
+}
@@ -0,0 +1,553 @@
+package utils;
+
+import utils.Ascii.Ansi.Color;
+import utils.Logger.KernelLog;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+// ------------------------------------------------------------
+//                         BINARY LOG
+// ------------------------------------------------------------
+// Log writer that does not format at all. A record holds the
+// time, level and thread, the id of the message template and
+// the raw arguments; text is rendered offline by the decoder
+// (main), in the '[device@N] ...' format of the console writers.
+//
+// Records go into memory-mapped segment files of a fixed size;
+// a full segment is replaced by a new one and the oldest beyond
+// 'files' deleted. A record's bytes are reserved with one CAS on
+// the segment position and marked with its negated length,
+// then filled in place and committed by writing the length, so
+// the decoder skips a record whose writer stalled or died and
+// goes on with the ones after it. Each segment begins with the definitions of all
+// templates and threads seen so far and decodes on its own.
+//
+// Enabled with utils.log.binary=<dir>; utils.log.binary.size
+// (bytes per segment) and utils.log.binary.files set rolling.
+//
+public enum BinaryLog {
+    ;
+    static final int MAGIC = 0x4E4C4F47; // "NLOG"
+    static final short VERSION = 1;
+    static final int HEADER = 16;
+
+    // Record types.
+    static final byte TEMPLATE = 1, THREAD = 2, EVENT = 3, TEXT = 4;
+
+    // Argument tags.
+    static final byte NULL = 0, LONG = 1, DOUBLE = 2, BOOLEAN = 3, CHAR = 4, STRING = 5;
+
+    // length, type, level, time, thread.
+    static final int RECORD = 4 + 1 + 1 + 8 + 8;
+
+    // Characters kept of a string; 3 bytes each fit the u16 length.
+    static final int MAX_CHARS = 0xFFFF / 3;
+
+    static final int MAX_TEMPLATES = 1 << 16;
+    static final int MAX_THREADS = 4096;
+
+    // -- WRITER ----------------------------------------
+    //
+    static final class Writer implements Logger.LogWriter {
+
+        static final class Segment {
+            final Path path;
+            final MappedByteBuffer buffer;
+            final AtomicInteger position = new AtomicInteger(HEADER);
+
+            Segment(Path _path, MappedByteBuffer _buffer) {
+                path = _path;
+                buffer = _buffer;
+            }
+
+            // Offset of 'size' reserved bytes, -1 if they don't fit.
+            int reserve(int size) {
+                while (true) {
+                    int at = position.get();
+                    if (at + size > buffer.capacity()) return -1;
+                    if (!position.compareAndSet(at, at + size)) continue;
+                    buffer.putInt(at, -size);
+                    return at;
+                }
+            }
+        }
+
+        // Per thread: whether it is defined, the last reservation.
+        static final class State {
+            boolean defined;
+            Segment segment;
+            int at;
+        }
+
+        final Path dir;
+        final String prefix;
+        final int segmentSize;
+        final int files;
+        final long baseEpochNanos = System.currentTimeMillis() * 1_000_000L;
+        final long baseNanos = System.nanoTime();
+
+        final ConcurrentHashMap<String, Integer> templates = new ConcurrentHashMap<>();
+        final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+        final LongAdder dropped = new LongAdder();
+
+        // Guarded by this.
+        final List<String> templateList = new ArrayList<>();
+        final Map<Long, String> threads = new LinkedHashMap<>();
+        final ArrayDeque<Path> segments = new ArrayDeque<>();
+        int sequence;
+
+        volatile Segment current;
+        volatile boolean failed;
+
+        Writer(Path _dir, int _segmentSize, int _files) throws IOException {
+            checkArgument(_segmentSize >= 64 * 1024, "segment too small");
+            checkArgument(_files > 0, "need at least one file");
+            dir = Files.createDirectories(_dir);
+            prefix = "log-" + System.currentTimeMillis();
+            segmentSize = _segmentSize;
+            files = _files;
+            current = open();
+        }
+
+        static Writer open(Path dir) throws IOException {
+            Writer writer = new Writer(dir,
+                    Integer.getInteger("utils.log.binary.size", 64 << 20),
+                    Integer.getInteger("utils.log.binary.files", 8));
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "binary-log-shutdown"));
+            return writer;
+        }
+
+        public void write(Color color, CharSequence message, Throwable ex) {
+            write(KernelLog.OUT, color, message, ex);
+        }
+
+        public void write(KernelLog level, Color color, CharSequence message, Throwable ex) {
+            if (failed) return;
+            String trace = null;
+            if (ex != null) {
+                StringWriter writer = new StringWriter(256);
+                ex.printStackTrace(new PrintWriter(writer));
+                trace = writer.toString().trim();
+            }
+            int chars = Math.min(message.length(), MAX_CHARS);
+            int size = RECORD + 2 + utfLength(message, chars) + 1;
+            if (trace != null) size += 2 + utfLength(trace, Math.min(trace.length(), MAX_CHARS));
+            State s = state.get();
+            if (!begin(s, size)) return;
+            ByteBuffer b = s.segment.buffer;
+            int p = header(b, s.at, TEXT, level);
+            p = putUtf(b, p, message, chars);
+            b.put(p++, (byte) (trace != null ? 1 : 0));
+            if (trace != null) putUtf(b, p, trace, Math.min(trace.length(), MAX_CHARS));
+            b.putInt(s.at, size);
+        }
+
+        public boolean record(KernelLog level, String pattern, long a) {
+            if (failed) return true;
+            int template = template(pattern);
+            if (template < 0) return false;
+            int size = RECORD + 4 + 1 + 9;
+            State s = state.get();
+            if (!begin(s, size)) return true;
+            ByteBuffer b = s.segment.buffer;
+            int p = header(b, s.at, EVENT, level);
+            b.putInt(p, template);
+            b.put(p + 4, (byte) 1);
+            b.put(p + 5, LONG);
+            b.putLong(p + 6, a);
+            b.putInt(s.at, size);
+            return true;
+        }
+
+        public boolean record(KernelLog level, String pattern, int n, Object a, Object b, Object c) {
+            if (failed) return true;
+            int template = template(pattern);
+            if (template < 0) return false;
+            a = plain(a);
+            b = plain(b);
+            c = plain(c);
+            int size = RECORD + 4 + 1 + argSize(a) + (n > 1 ? argSize(b) : 0) + (n > 2 ? argSize(c) : 0);
+            State s = state.get();
+            if (!begin(s, size)) return true;
+            ByteBuffer buffer = s.segment.buffer;
+            int p = header(buffer, s.at, EVENT, level);
+            buffer.putInt(p, template);
+            buffer.put(p + 4, (byte) n);
+            p = putArg(buffer, p + 5, a);
+            if (n > 1) p = putArg(buffer, p, b);
+            if (n > 2) putArg(buffer, p, c);
+            buffer.putInt(s.at, size);
+            return true;
+        }
+
+        public boolean record(KernelLog level, String pattern, Object[] args) {
+            if (failed) return true;
+            int template = template(pattern);
+            if (template < 0 || args.length > 255) return false;
+            Object[] plain = args;
+            for (int i = 0; i < args.length; ++i) {
+                Object arg = plain(args[i]);
+                if (arg == args[i]) continue;
+                if (plain == args) plain = args.clone();
+                plain[i] = arg;
+            }
+            int size = RECORD + 4 + 1;
+            for (Object arg : plain) size += argSize(arg);
+            State s = state.get();
+            if (!begin(s, size)) return true;
+            ByteBuffer b = s.segment.buffer;
+            int p = header(b, s.at, EVENT, level);
+            b.putInt(p, template);
+            b.put(p + 4, (byte) plain.length);
+            p += 5;
+            for (Object arg : plain) p = putArg(b, p, arg);
+            b.putInt(s.at, size);
+            return true;
+        }
+
+        // Reserves 'size' bytes into s.segment / s.at, rolling over
+        // to a new segment if needed; false if the record is dropped.
+        boolean begin(State s, int size) {
+            if (!s.defined) defineThread(s);
+            for (int attempt = 0; ; ++attempt) {
+                Segment segment = current;
+                int at = segment.reserve(size);
+                if (at >= 0) {
+                    s.segment = segment;
+                    s.at = at;
+                    return true;
+                }
+                if (attempt == 3 || !roll(segment)) {
+                    dropped.increment();
+                    return false;
+                }
+            }
+        }
+
+        int header(ByteBuffer b, int at, byte type, KernelLog level) {
+            b.put(at + 4, type);
+            b.put(at + 5, (byte) level.ordinal());
+            b.putLong(at + 6, baseEpochNanos + System.nanoTime() - baseNanos);
+            b.putLong(at + 14, Thread.currentThread().getId());
+            return at + RECORD;
+        }
+
+        // Id of the template, -1 once there are too many of them.
+        int template(String pattern) {
+            Integer id = templates.get(pattern);
+            return id != null ? id : define(pattern);
+        }
+
+        synchronized int define(String pattern) {
+            Integer id = templates.get(pattern);
+            if (id != null) return id;
+            if (templateList.size() == MAX_TEMPLATES) return -1;
+            id = templateList.size();
+            templateList.add(pattern);
+            definition(TEMPLATE, id, pattern);
+            templates.put(pattern, id);
+            return id;
+        }
+
+        synchronized void defineThread(State s) {
+            Thread thread = Thread.currentThread();
+            if (threads.size() < MAX_THREADS) {
+                threads.put(thread.getId(), thread.getName());
+                definition(THREAD, thread.getId(), thread.getName());
+            }
+            s.defined = true;
+        }
+
+        // Caller holds the lock.
+        void definition(byte type, long id, String text) {
+            for (int attempt = 0; attempt < 3; ++attempt) {
+                Segment segment = current;
+                if (define(segment, type, id, text) || !roll(segment)) return;
+            }
+        }
+
+        static boolean define(Segment segment, byte type, long id, String text) {
+            int chars = Math.min(text.length(), MAX_CHARS);
+            int size = 4 + 1 + 8 + 2 + utfLength(text, chars);
+            int at = segment.reserve(size);
+            if (at < 0) return false;
+            ByteBuffer b = segment.buffer;
+            b.put(at + 4, type);
+            b.putLong(at + 5, id);
+            putUtf(b, at + 13, text, chars);
+            b.putInt(at, size);
+            return true;
+        }
+
+        // Replaces the full segment, unless another thread already did.
+        synchronized boolean roll(Segment full) {
+            if (current != full) return true;
+            if (failed) return false;
+            try {
+                Segment next = open();
+                for (int id = 0; id < templateList.size(); ++id) define(next, TEMPLATE, id, templateList.get(id));
+                for (Map.Entry<Long, String> thread : threads.entrySet()) define(next, THREAD, thread.getKey(), thread.getValue());
+                current = next;
+                while (segments.size() > files) Files.deleteIfExists(segments.pollFirst());
+                return true;
+            } catch (IOException e) {
+                failed = true;
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        Segment open() throws IOException {
+            Path path = dir.resolve(String.format("%s-%04d.bin", prefix, sequence++));
+            MappedByteBuffer buffer;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.setLength(segmentSize);
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putShort(4, VERSION);
+            buffer.putInt(6, Logger.deviceID());
+            segments.addLast(path);
+            return new Segment(path, buffer);
+        }
+
+        // Makes the current segment durable; later records still go in.
+        void close() {
+            current.buffer.force();
+            long lost = dropped.sum();
+            if (lost > 0) System.err.println("binary log: " + lost + " records dropped");
+        }
+    }
+
+    // Arguments are stored as numbers, booleans, chars or strings.
+    static Object plain(Object arg) {
+        if (arg == null || arg instanceof CharSequence || arg instanceof Number && isPrimitive((Number) arg)
+                || arg instanceof Boolean || arg instanceof Character) {
+            return arg;
+        }
+        return String.valueOf(arg);
+    }
+
+    static boolean isPrimitive(Number n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte
+                || n instanceof Double || n instanceof Float;
+    }
+
+    static int argSize(Object arg) {
+        if (arg == null) return 1;
+        if (arg instanceof Number) return 9;
+        if (arg instanceof Boolean) return 2;
+        if (arg instanceof Character) return 3;
+        CharSequence s = (CharSequence) arg;
+        return 1 + 2 + utfLength(s, Math.min(s.length(), MAX_CHARS));
+    }
+
+    static int putArg(ByteBuffer b, int p, Object arg) {
+        if (arg == null) {
+            b.put(p, NULL);
+            return p + 1;
+        }
+        if (arg instanceof Double || arg instanceof Float) {
+            b.put(p, DOUBLE);
+            b.putDouble(p + 1, ((Number) arg).doubleValue());
+            return p + 9;
+        }
+        if (arg instanceof Number) {
+            b.put(p, LONG);
+            b.putLong(p + 1, ((Number) arg).longValue());
+            return p + 9;
+        }
+        if (arg instanceof Boolean) {
+            b.put(p, BOOLEAN);
+            b.put(p + 1, (byte) ((Boolean) arg ? 1 : 0));
+            return p + 2;
+        }
+        if (arg instanceof Character) {
+            b.put(p, CHAR);
+            b.putChar(p + 1, (Character) arg);
+            return p + 3;
+        }
+        CharSequence s = (CharSequence) arg;
+        b.put(p, STRING);
+        return putUtf(b, p + 1, s, Math.min(s.length(), MAX_CHARS));
+    }
+
+    // Modified UTF-8, as DataOutput.writeUTF: u16 length, then bytes.
+    static int utfLength(CharSequence s, int chars) {
+        int n = 0;
+        for (int i = 0; i < chars; ++i) {
+            char c = s.charAt(i);
+            n += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return n;
+    }
+
+    static int putUtf(ByteBuffer b, int p, CharSequence s, int chars) {
+        int start = p;
+        p += 2;
+        for (int i = 0; i < chars; ++i) {
+            char c = s.charAt(i);
+            if (c >= 1 && c <= 0x7F) {
+                b.put(p++, (byte) c);
+            } else if (c <= 0x7FF) {
+                b.put(p++, (byte) (0xC0 | c >> 6));
+                b.put(p++, (byte) (0x80 | c & 0x3F));
+            } else {
+                b.put(p++, (byte) (0xE0 | c >> 12));
+                b.put(p++, (byte) (0x80 | c >> 6 & 0x3F));
+                b.put(p++, (byte) (0x80 | c & 0x3F));
+            }
+        }
+        b.putShort(start, (short) (p - start - 2));
+        return p;
+    }
+
+    // -- DECODER ---------------------------------------
+    // Renders segment files as log lines; with -v each line is
+    // prefixed with time, level and thread.
+    //
+    static final class Decoder {
+        final PrintWriter out;
+        final boolean verbose;
+        final StringBuilder line = new StringBuilder(256);
+        final Map<Long, String> templates = new HashMap<>();
+        final Map<Long, String> threads = new HashMap<>();
+        final List<Object> args = new ArrayList<>();
+        int device;
+
+        Decoder(PrintWriter _out, boolean _verbose) {
+            out = _out;
+            verbose = _verbose;
+        }
+
+        void decode(Path file) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (b.remaining() < HEADER || b.getInt(0) != MAGIC || b.getShort(4) != VERSION) {
+                throw new IOException(file + ": not a binary log");
+            }
+            device = b.getInt(6);
+            templates.clear();
+            threads.clear();
+            int p = HEADER;
+            int skipped = 0;
+            while (p + 4 <= b.limit()) {
+                int length = b.getInt(p);
+                if (length < 0 && p - (long) length <= b.limit()) {
+                    ++skipped;
+                    p -= length;
+                } else if (length > 0 && p + (long) length <= b.limit()) {
+                    record(new DataInputStream(new ByteArrayInputStream(b.array(), p + 4, length - 4)));
+                    p += length;
+                } else {
+                    break;
+                }
+            }
+            if (skipped > 0) System.err.println(file + ": " + skipped + " uncommitted records skipped");
+            int rest = p;
+            while (rest < b.limit() && b.get(rest) == 0) ++rest;
+            if (rest < b.limit()) System.err.println(file + ": truncated at offset " + p + ", " + (b.limit() - p) + " bytes not decoded");
+        }
+
+        void record(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == TEMPLATE || type == THREAD) {
+                long id = in.readLong();
+                (type == TEMPLATE ? templates : threads).put(id, in.readUTF());
+                return;
+            }
+            KernelLog level = KernelLog.values()[in.readByte()];
+            long nanos = in.readLong();
+            long thread = in.readLong();
+            line.setLength(0);
+            if (verbose) {
+                line.append(Instant.ofEpochSecond(0, nanos)).append(' ').append(level).append(' ')
+                    .append('[').append(threads.getOrDefault(thread, "thread-" + thread)).append("] ");
+            }
+            Logger.devicePrefix(line, device);
+            if (type == TEXT) {
+                line.append(in.readUTF());
+                if (in.readByte() != 0) line.append('\n').append(in.readUTF());
+            } else {
+                String pattern = templates.getOrDefault((long) in.readInt(), "<unknown template>");
+                args.clear();
+                for (int n = in.readUnsignedByte(); n > 0; --n) args.add(arg(in));
+                int from = 0;
+                for (Object arg : args) {
+                    int at = pattern.indexOf("{}", from);
+                    if (at < 0) break;
+                    Logger.append(line.append(pattern, from, at), arg);
+                    from = at + 2;
+                }
+                line.append(pattern, from, pattern.length());
+            }
+            out.println(line);
+        }
+
+        static Object arg(DataInputStream in) throws IOException {
+            switch (in.readByte()) {
+                case LONG: return in.readLong();
+                case DOUBLE: return in.readDouble();
+                case BOOLEAN: return in.readByte() != 0;
+                case CHAR: return in.readChar();
+                case STRING: return in.readUTF();
+                default: return null;
+            }
+        }
+    }
+
+    // Decodes the given segment files, or all in the given directories.
+    public static void main(String[] args) throws IOException {
+        boolean verbose = false;
+        List<Path> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("-v")) {
+                verbose = true;
+                continue;
+            }
+            Path path = Paths.get(arg);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> list = Files.list(path)) {
+                    files.addAll(list.filter(f -> f.toString().endsWith(".bin")).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                files.add(path);
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: BinaryLog [-v] <segment file | directory>...");
+            System.exit(2);
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+        Decoder decoder = new Decoder(out, verbose);
+        for (Path file : files) decoder.decode(file);
+        out.flush();
+    }
+}
@@ -1,9 +1,15 @@
 package utils;
 
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Formatter;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -18,6 +24,10 @@ public enum Console {
 
     static final OutWriter out = new OutWriter(new PrintWriter(System.out, true));
 
+    static {
+        if (Boolean.getBoolean("utils.console.buffered")) buffered(true);
+    }
+
     static final ErrWriter err = new ErrWriter(new PrintWriter(System.err, true));
 
     // --------------------------------------------------
@@ -26,6 +36,13 @@ public enum Console {
 
     public static ErrWriter err() { return err; }
 
+    // Switches out() to (or back from) the buffered channel mode.
+    public static void buffered(boolean on) {
+        OutWriter writer = out;
+        if (writer.sink != null) writer.sink.flush();
+        writer.sink = on ? ChannelSink.stdout() : null;
+    }
+
     // --------------------------------------------------
 
     public static final class OutWriter {
@@ -38,6 +55,9 @@ public enum Console {
 
         private boolean useColors = true;
 
+        // Buffered mode if set.
+        private volatile ChannelSink sink;
+
         private OutWriter(PrintWriter _writer) { writer = checkNotNull(_writer); }
 
         public OutWriter print(int x)     { apply(false, Integer.toString(x)); return this; }
@@ -50,7 +70,7 @@ public enum Console {
 
         public OutWriter print(double x)  { apply(false, Double.toString(x)); return this; }
 
-        public OutWriter print(Object x)  { apply(false, x.toString()); return this; }
+        public OutWriter print(Object x)  { apply(false, text(x)); return this; }
 
         public OutWriter print(char x[])  { apply(false, Arrays.toString(x)); return this; }
 
@@ -68,7 +88,7 @@ public enum Console {
 
         public void   println(double x)   { apply(true, Double.toString(x)); }
 
-        public void   println(Object x)   { apply(true, x.toString()); }
+        public void   println(Object x)   { apply(true, text(x)); }
 
         public void   println(char x[])   { apply(true, Arrays.toString(x)); }
 
@@ -78,15 +98,183 @@ public enum Console {
 
         public void   println() { apply(true, ""); }
 
-        private void apply(boolean newLine, String s) {
-            if (useColors) sb.append(s);
-            if (newLine)
-                writer.println(sb.toString());
-            else {
-                writer.print(sb.toString());
-                writer.flush();
+        public void   flush() {
+            ChannelSink buffered = sink;
+            if (buffered != null) buffered.flush(); else writer.flush();
+        }
+
+        private static CharSequence text(Object x) {
+            return x instanceof CharSequence ? (CharSequence) x : x.toString();
+        }
+
+        private void apply(boolean newLine, CharSequence s) {
+            ChannelSink buffered = sink;
+            if (buffered != null) {
+                if (useColors) buffered.write(s, newLine);
+                return;
+            }
+            synchronized (this) {
+                if (useColors) sb.append(s);
+                if (newLine)
+                    writer.println(sb);
+                else {
+                    writer.print(sb);
+                    writer.flush();
+                }
+                sb.setLength(0);
+            }
+        }
+    }
+
+    // -- CHANNEL SINK ----------------------------------
+    // Buffered mode of the out writer. Text is encoded (UTF-8)
+    // straight into one of two direct buffers; a flusher thread
+    // writes the other to stdout's FileChannel. A buffer is handed
+    // over when it is full, when its first byte has waited
+    // utils.console.flush.millis, on flush() and at shutdown, so
+    // writers only serialize on the copy into the buffer, and
+    // wait only if both buffers are full.
+    //
+    // Output printed through System.out directly is not ordered
+    // with buffered output.
+    //
+    static final class ChannelSink {
+
+        static final int SIZE = Integer.getInteger("utils.console.buffer", 64 * 1024);
+
+        static final long FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("utils.console.flush.millis", 50));
+
+        private static ChannelSink stdout;
+
+        private final WritableByteChannel channel;
+
+        // Held for a whole write, across the waits in handoff(), so
+        // lines never interleave.
+        private final Object writers = new Object();
+
+        // Guarded by this: the buffer being filled, the one handed to
+        // the flusher (null if none), the free one (null while that
+        // is being written).
+        private ByteBuffer filling = ByteBuffer.allocateDirect(SIZE);
+
+        private ByteBuffer writing;
+
+        private ByteBuffer free = ByteBuffer.allocateDirect(SIZE);
+
+        private long pendingSince;
+
+        private boolean closing;
+
+        ChannelSink(WritableByteChannel _channel) {
+            channel = checkNotNull(_channel);
+            Thread flusher = new Thread(this::flushLoop, "console-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        static synchronized ChannelSink stdout() {
+            if (stdout == null) {
+                stdout = new ChannelSink(new FileOutputStream(FileDescriptor.out).getChannel());
+                Runtime.getRuntime().addShutdownHook(new Thread(stdout::close, "console-shutdown"));
+            }
+            return stdout;
+        }
+
+        void write(CharSequence s, boolean newLine) {
+            synchronized (writers) {
+                synchronized (this) {
+                    append(s, newLine);
+                }
+            }
+        }
+
+        private void append(CharSequence s, boolean newLine) {
+            if (filling.position() == 0) pendingSince = System.nanoTime();
+            int n = s.length();
+            for (int i = 0; i < n; ++i) {
+                if (filling.remaining() < 4) handoff();
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    filling.put((byte) c);
+                } else if (c < 0x800) {
+                    filling.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    filling.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                           .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    filling.put((byte) '?');
+                } else {
+                    filling.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+                }
+            }
+            if (newLine) {
+                if (!filling.hasRemaining()) handoff();
+                filling.put((byte) '\n');
+            }
+            if (closing) flush();
+        }
+
+        // Returns once everything written so far is on the channel.
+        void flush() {
+            synchronized (writers) {
+                synchronized (this) {
+                    if (filling.position() > 0) handoff();
+                    boolean interrupted = false;
+                    while (writing != null) {
+                        try { wait(); } catch (InterruptedException e) { interrupted = true; }
+                    }
+                    if (interrupted) Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void close() {
+            synchronized (this) { closing = true; }
+            flush();
+        }
+
+        // Caller holds the lock; waits until the flusher is free.
+        private void handoff() {
+            boolean interrupted = false;
+            while (writing != null) {
+                try { wait(); } catch (InterruptedException e) { interrupted = true; }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            filling.flip();
+            writing = filling;
+            filling = free;
+            free = null;
+            pendingSince = System.nanoTime();
+            notifyAll();
+        }
+
+        private void flushLoop() {
+            while (true) {
+                ByteBuffer out;
+                synchronized (this) {
+                    while (writing == null) {
+                        long due = filling.position() == 0 ? FLUSH_NANOS : pendingSince + FLUSH_NANOS - System.nanoTime();
+                        if (due <= 0) {
+                            handoff();
+                            break;
+                        }
+                        try { TimeUnit.NANOSECONDS.timedWait(this, due); } catch (InterruptedException e) { return; }
+                    }
+                    out = writing;
+                }
+                try {
+                    while (out.hasRemaining()) channel.write(out);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    out.clear();
+                    free = out;
+                    writing = null;
+                    notifyAll();
+                }
             }
-            sb.setLength(0);
         }
     }
 
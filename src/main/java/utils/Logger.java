@@ -2,8 +2,21 @@ package utils;
 
 import utils.Ascii.Ansi.Color;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 // ------------------------------------------------------------
 //                        KERNEL LOGGER
@@ -12,92 +25,253 @@ import java.io.StringWriter;
 //
 public enum Logger {
     ;
-    private static KernelLog logger = KernelLog.OUT;
-    private static LogWriter logWriter = StdOutLogger.get;
+    // Read on every call, so a level set at runtime (directly or
+    // via the 'utils:type=Logger' MXBean) applies at once.
+    private static volatile KernelLog logger =
+            KernelLog.valueOf(System.getProperty("utils.log.level", "OUT").toUpperCase());
+    private static LogWriter logWriter = writer();
     private static boolean isColored = false;
 
+    static { register(); }
+
+    // utils.log.binary, else utils.log.async, else stdout. A binary
+    // log that cannot be opened is reported once on stderr and the
+    // default writer takes over.
+    private static LogWriter writer() {
+        String binary = System.getProperty("utils.log.binary");
+        if (binary != null) {
+            try {
+                return BinaryLog.Writer.open(Paths.get(binary));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("cannot open binary log in " + binary + ", falling back: " + e);
+            }
+        }
+        return Boolean.parseBoolean(System.getProperty("utils.log.async", "false"))
+                ? AsyncLogWriter.start()
+                : StdOutLogger.get;
+    }
+
     public static void color(boolean val) { isColored = val; }
     public static boolean isColored() { return isColored; }
 
+    public static void level(KernelLog level) { logger = checkNotNull(level); }
+    public static KernelLog level() { return logger; }
+
     // ERROR.
-    public static void error(String msg) { error(msg, null); }
+    public static void error(String msg) { KernelLog.ERROR.write(msg, null); }
     public static void error(String msg, Throwable ex) { KernelLog.ERROR.write(msg, ex); }
     public static void error(Throwable ex) { KernelLog.ERROR.write(ex.getMessage(), null); }
+    public static void error(Supplier<?> msg) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, msg.get()); }
+    public static void error(String pattern, long a) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, pattern, a); }
+    public static void error(String pattern, Object a) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, pattern, 1, a, null, null); }
+    public static void error(String pattern, Object a, Object b) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, pattern, 2, a, b, null); }
+    public static void error(String pattern, Object a, Object b, Object c) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, pattern, 3, a, b, c); }
+    public static void error(String pattern, Object... args) { if (KernelLog.ERROR.isEnabled()) log(KernelLog.ERROR, pattern, args); }
 
     // WARN.
-    public static void warn(String msg) { warn(msg, null); }
-    public static void warn(Object msg) { warn(String.valueOf(msg), null); }
+    public static void warn(String msg) { KernelLog.WARN.write(msg, null); }
+    public static void warn(Object msg) { log(KernelLog.WARN, msg); }
     public static void warn(String msg, Throwable ex) { KernelLog.WARN.write(msg, ex); }
+    public static void warn(Supplier<?> msg) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, msg.get()); }
+    public static void warn(String pattern, long a) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, pattern, a); }
+    public static void warn(String pattern, Object a) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, pattern, 1, a, null, null); }
+    public static void warn(String pattern, Object a, Object b) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, pattern, 2, a, b, null); }
+    public static void warn(String pattern, Object a, Object b, Object c) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, pattern, 3, a, b, c); }
+    public static void warn(String pattern, Object... args) { if (KernelLog.WARN.isEnabled()) log(KernelLog.WARN, pattern, args); }
 
     // INFO.
-    public static void info(String msg) { info(msg, null); }
-    public static void info(Object msg) { info(String.valueOf(msg), null); }
+    public static void info(String msg) { KernelLog.INFO.write(msg, null); }
+    public static void info(Object msg) { log(KernelLog.INFO, msg); }
     public static void info(String msg, Throwable ex) { KernelLog.INFO.write(msg, ex); }
+    public static void info(Supplier<?> msg) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, msg.get()); }
+    public static void info(String pattern, long a) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, pattern, a); }
+    public static void info(String pattern, Object a) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, pattern, 1, a, null, null); }
+    public static void info(String pattern, Object a, Object b) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, pattern, 2, a, b, null); }
+    public static void info(String pattern, Object a, Object b, Object c) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, pattern, 3, a, b, c); }
+    public static void info(String pattern, Object... args) { if (KernelLog.INFO.isEnabled()) log(KernelLog.INFO, pattern, args); }
 
     // STD-OUT.
-    public static void out(String msg) { out(msg, null); }
-    public static void out(Object msg) { out(String.valueOf(msg), null); }
-    public static void out(Color color, String msg) { out(isColored ? color.apply(msg) : msg, null); }
+    public static void out(String msg) { KernelLog.OUT.write(msg, null); }
+    public static void out(Object msg) { log(KernelLog.OUT, msg); }
+    public static void out(Color color, String msg) { if (KernelLog.OUT.isEnabled()) KernelLog.OUT.write(isColored ? color.apply(msg) : msg, null); }
     public static void out(String msg, Throwable ex) { KernelLog.OUT.write(msg, ex); }
+    public static void out(Supplier<?> msg) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, msg.get()); }
+    public static void out(String pattern, long a) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, pattern, a); }
+    public static void out(String pattern, Object a) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, pattern, 1, a, null, null); }
+    public static void out(String pattern, Object a, Object b) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, pattern, 2, a, b, null); }
+    public static void out(String pattern, Object a, Object b, Object c) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, pattern, 3, a, b, c); }
+    public static void out(String pattern, Object... args) { if (KernelLog.OUT.isEnabled()) log(KernelLog.OUT, pattern, args); }
 
     // DEBUG.
-    public static void debug(String msg) { debug(msg, null); }
-    public static void debug(Object msg) { debug(String.valueOf(msg), null); }
+    public static void debug(String msg) { KernelLog.DEBUG.write(msg, null); }
+    public static void debug(Object msg) { log(KernelLog.DEBUG, msg); }
     public static void debug(String msg, Throwable ex) { KernelLog.DEBUG.write(msg, ex); }
+    public static void debug(Supplier<?> msg) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, msg.get()); }
+    public static void debug(String pattern, long a) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, pattern, a); }
+    public static void debug(String pattern, Object a) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, pattern, 1, a, null, null); }
+    public static void debug(String pattern, Object a, Object b) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, pattern, 2, a, b, null); }
+    public static void debug(String pattern, Object a, Object b, Object c) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, pattern, 3, a, b, c); }
+    public static void debug(String pattern, Object... args) { if (KernelLog.DEBUG.isEnabled()) log(KernelLog.DEBUG, pattern, args); }
 
     // TRACE.
-    public static void trace(String msg) { trace(msg, null); }
-    public static void trace(Object msg) { trace(String.valueOf(msg), null); }
+    public static void trace(String msg) { KernelLog.TRACE.write(msg, null); }
+    public static void trace(Object msg) { log(KernelLog.TRACE, msg); }
     public static void trace(String msg, Throwable ex) { KernelLog.TRACE.write(msg, ex); }
+    public static void trace(Supplier<?> msg) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, msg.get()); }
+    public static void trace(String pattern, long a) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, pattern, a); }
+    public static void trace(String pattern, Object a) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, pattern, 1, a, null, null); }
+    public static void trace(String pattern, Object a, Object b) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, pattern, 2, a, b, null); }
+    public static void trace(String pattern, Object a, Object b, Object c) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, pattern, 3, a, b, c); }
+    public static void trace(String pattern, Object... args) { if (KernelLog.TRACE.isEnabled()) log(KernelLog.TRACE, pattern, args); }
+
+    // -- FORMATTING ------------------------------------
+    // '{}' placeholders are replaced by the arguments in order,
+    // straight into a reused per-thread buffer: numbers, booleans
+    // and CharSequences are appended without a String in between,
+    // other objects via toString(). Log writers copy the buffer
+    // before returning. A message logged from within an argument's
+    // toString() gets a fresh buffer.
+    //
+    static final class Formatter {
+        static final int MAX_RETAINED = 16 * 1024;
+        static final ThreadLocal<Formatter> current = ThreadLocal.withInitial(Formatter::new);
+        StringBuilder line = new StringBuilder(256);
+        boolean busy;
+
+        StringBuilder acquire() {
+            if (busy) return new StringBuilder(256);
+            busy = true;
+            return line;
+        }
+
+        void release(StringBuilder used) {
+            if (used != line) return;
+            if (used.capacity() > MAX_RETAINED) line = new StringBuilder(256);
+            else used.setLength(0);
+            busy = false;
+        }
+    }
+
+    private static void log(KernelLog level, Object msg) {
+        if (!level.isEnabled()) return;
+        Formatter formatter = Formatter.current.get();
+        StringBuilder line = formatter.acquire();
+        try {
+            level.write(append(line, msg), null);
+        } finally {
+            formatter.release(line);
+        }
+    }
+
+    private static void log(KernelLog level, String pattern, long a) {
+        if (logWriter.record(level, pattern, a)) return;
+        Formatter formatter = Formatter.current.get();
+        StringBuilder line = formatter.acquire();
+        try {
+            int at = pattern.indexOf("{}");
+            if (at < 0) line.append(pattern);
+            else line.append(pattern, 0, at).append(a).append(pattern, at + 2, pattern.length());
+            level.write(line, null);
+        } finally {
+            formatter.release(line);
+        }
+    }
+
+    private static void log(KernelLog level, String pattern, int n, Object a, Object b, Object c) {
+        if (logWriter.record(level, pattern, n, a, b, c)) return;
+        Formatter formatter = Formatter.current.get();
+        StringBuilder line = formatter.acquire();
+        try {
+            int from = 0;
+            for (int i = 0; i < n; ++i) {
+                int at = pattern.indexOf("{}", from);
+                if (at < 0) break;
+                append(line.append(pattern, from, at), i == 0 ? a : i == 1 ? b : c);
+                from = at + 2;
+            }
+            level.write(line.append(pattern, from, pattern.length()), null);
+        } finally {
+            formatter.release(line);
+        }
+    }
+
+    private static void log(KernelLog level, String pattern, Object... args) {
+        if (logWriter.record(level, pattern, args)) return;
+        Formatter formatter = Formatter.current.get();
+        StringBuilder line = formatter.acquire();
+        try {
+            int from = 0;
+            for (Object arg : args) {
+                int at = pattern.indexOf("{}", from);
+                if (at < 0) break;
+                append(line.append(pattern, from, at), arg);
+                from = at + 2;
+            }
+            level.write(line.append(pattern, from, pattern.length()), null);
+        } finally {
+            formatter.release(line);
+        }
+    }
+
+    static StringBuilder append(StringBuilder line, Object arg) {
+        if (arg instanceof CharSequence) return line.append((CharSequence) arg);
+        if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            return line.append(((Number) arg).longValue());
+        }
+        if (arg instanceof Double || arg instanceof Float) return line.append(((Number) arg).doubleValue());
+        if (arg instanceof Boolean) return line.append((boolean) (Boolean) arg);
+        if (arg instanceof Character) return line.append((char) (Character) arg);
+        return line.append(arg);
+    }
 
     // -- KERNEL LOG-PROVIDER ---------------------------
     //
-    enum KernelLog implements LogProvider<KernelLog> {
+    public enum KernelLog implements LogProvider<KernelLog> {
         // No logging at all.
         NONE {
-            public void write(String message, Throwable th) {}
+            public void write(CharSequence message, Throwable th) {}
         },
         // Critical errors.
         // The application may no longer work correctly.
         ERROR {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(Color.RED, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, Color.RED, message, th);
                 }
             }
         },
         // Important warnings.
         // The application will continue to work correctly.
         WARN {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(Color.PURPLE, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, Color.PURPLE, message, th);
                 }
             }
         },
         // Informative messages.
         // Typically used for deployment.
         INFO {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(Color.GREY, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, Color.GREY, message, th);
                 }
             }
         },
         // System.out.println substitute.
         OUT {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(null, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, null, message, th);
                 }
             }
         },
         // Debug messages.
         // This level is useful during development.
         DEBUG {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(Color.BLUE, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, Color.BLUE, message, th);
                 }
             }
         },
@@ -105,14 +279,16 @@ public enum Logger {
         // A lot of information is logged, so this level is
         // usually only needed when debugging a problem.
         TRACE {
-            public void write(String message, Throwable th) {
-                if (ordinal() <= logger.ordinal()) {
-                    logWriter.write(Color.GREEN, message, th);
+            public void write(CharSequence message, Throwable th) {
+                if (isEnabled()) {
+                    logWriter.write(this, Color.GREEN, message, th);
                 }
             }
         };
+        public boolean isEnabled() { return ordinal() <= logger.ordinal(); }
+
         public void set(KernelLog level) {
-            // logger = level;
+            logger = checkNotNull(level);
         }
     }
 
@@ -125,7 +301,7 @@ public enum Logger {
 
         default E level() { return self(); }
 
-        void write(String message, Throwable th);
+        void write(CharSequence message, Throwable th);
 
         void set(E level);
     }
@@ -134,7 +310,20 @@ public enum Logger {
     //
     interface LogWriter {
 
-        void write(Color color, String message, Throwable ex);
+        void write(Color color, CharSequence message, Throwable ex);
+
+        default void write(KernelLog level, Color color, CharSequence message, Throwable ex) {
+            write(color, message, ex);
+        }
+
+        // Called before a placeholder message is formatted; a writer
+        // that keeps the template and the arguments as they are
+        // returns true, and the message is never formatted.
+        default boolean record(KernelLog level, String pattern, long a) { return false; }
+
+        default boolean record(KernelLog level, String pattern, int n, Object a, Object b, Object c) { return false; }
+
+        default boolean record(KernelLog level, String pattern, Object[] args) { return false; }
     }
 
     // -- STDOUT LOG-WRITER -----------------------------
@@ -151,27 +340,194 @@ public enum Logger {
             StringBuilder msg = new StringBuilder(256);
         }
 
-        public void write(Color color, String message, Throwable ex) {
+        public void write(Color color, CharSequence message, Throwable ex) {
             Context ctx = context.get();
+            format(ctx.msg, color, message, ex);
+            Console.out().println(ctx.msg);
+            ctx.msg.setLength(0);
+        }
+
+        // One log line (plus stack trace), without line separator.
+        static void format(StringBuilder line, Color color, CharSequence message, Throwable ex) {
+            devicePrefix(line, deviceID());
             if (isColored && color != null) {
-                message = color.apply(message);
+                line.append(color.apply(message.toString()));
+            }
+            else {
+                line.append(message);
             }
-            ctx.msg.append(message);
             if (ex != null) {
                 StringWriter writer = new StringWriter(256);
                 ex.printStackTrace(new PrintWriter(writer));
-                ctx.msg.append('\n').append(writer.toString().trim());
+                line.append('\n').append(writer.toString().trim());
             }
-            String devicePrefix;
-            int deviceID = 10; //Kernel.device() != null? Kernel.device().deviceID() : -1; TODO
-            if (deviceID != -1) {
-                devicePrefix = "[device@" + deviceID + "] ";
+        }
+    }
+
+    // -- ASYNC LOG-WRITER ------------------------------
+    // Takes log messages off the calling thread. A caller claims a
+    // slot of a preallocated ring with one CAS, copies its message
+    // into the slot's reusable buffer and publishes it; a single
+    // drainer thread formats whatever is published and hands the
+    // batch to the console in one write and one flush.
+    //
+    // When the ring is full the WhenFull policy decides: DROP the
+    // message, BLOCK until there is space, or SAMPLE: let one in
+    // 'sampleRate' messages wait for space and drop the others.
+    // Drops are counted and reported in the log itself.
+    //
+    // Off by default, utils.log.async=true installs it. Configured
+    // by utils.log.ring (slots, a power of two), utils.log.full and
+    // utils.log.sample. Messages written after shutdown has begun
+    // bypass the ring.
+    //
+    public static final class AsyncLogWriter implements LogWriter {
+
+        public enum WhenFull { DROP, BLOCK, SAMPLE }
+
+        static final class Entry {
+            // Sequence number once published, stale until then.
+            volatile long sequence = -1;
+            final StringBuilder text = new StringBuilder(256);
+            Color color;
+            Throwable ex;
+        }
+
+        final Entry[] ring;
+        final int mask;
+        final WhenFull whenFull;
+        final int sampleRate;
+
+        // Next sequence to claim, next sequence to drain.
+        final AtomicLong tail = new AtomicLong();
+        volatile long head;
+
+        final LongAdder dropped = new LongAdder();
+        final AtomicLong sampled = new AtomicLong();
+
+        // Drainer only.
+        final StringBuilder batch = new StringBuilder(64 * 1024);
+
+        volatile boolean closed;
+        Thread drainer;
+
+        public AsyncLogWriter(int size, WhenFull _whenFull, int _sampleRate) {
+            checkArgument(Integer.bitCount(size) == 1, "ring size must be a power of two");
+            checkArgument(_sampleRate > 0, "sample rate must be positive");
+            ring = new Entry[size];
+            for (int i = 0; i < size; ++i) ring[i] = new Entry();
+            mask = size - 1;
+            whenFull = _whenFull;
+            sampleRate = _sampleRate;
+        }
+
+        static AsyncLogWriter start() {
+            AsyncLogWriter writer = new AsyncLogWriter(
+                    Integer.getInteger("utils.log.ring", 4096),
+                    WhenFull.valueOf(System.getProperty("utils.log.full", "DROP").toUpperCase()),
+                    Integer.getInteger("utils.log.sample", 100));
+            writer.drainer = new Thread(writer::drain, "log-writer");
+            writer.drainer.setDaemon(true);
+            writer.drainer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(writer::close, "log-writer-shutdown"));
+            return writer;
+        }
+
+        public void write(Color color, CharSequence message, Throwable ex) {
+            if (closed) {
+                StdOutLogger.get.write(color, message, ex);
+                return;
             }
-            else {
-                devicePrefix = "[local-device] ";
+            long sequence = claim();
+            if (sequence < 0) return;
+            Entry entry = ring[(int) sequence & mask];
+            entry.text.setLength(0);
+            entry.text.append(message);
+            entry.color = color;
+            entry.ex = ex;
+            entry.sequence = sequence;
+        }
+
+        // Next free sequence, -1 if the message is dropped.
+        long claim() {
+            boolean admitted = whenFull == WhenFull.BLOCK;
+            while (true) {
+                long t = tail.get();
+                if (t - head < ring.length) {
+                    if (tail.compareAndSet(t, t + 1)) return t;
+                    continue;
+                }
+                if (!admitted) {
+                    if (whenFull == WhenFull.DROP || sampled.getAndIncrement() % sampleRate != 0) {
+                        dropped.increment();
+                        return -1;
+                    }
+                    admitted = true;
+                }
+                LockSupport.parkNanos(10_000);
+            }
+        }
+
+        void drain() {
+            int idle = 0;
+            while (true) {
+                if (drainBatch() > 0) {
+                    idle = 0;
+                    continue;
+                }
+                if (closed && head == tail.get()) return;
+                // Short naps while busy, longer ones once idle.
+                LockSupport.parkNanos(idle++ < 100 ? 50_000 : 1_000_000);
             }
-            Console.out().println(devicePrefix + ctx.msg.toString());
-            ctx.msg.setLength(0);
+        }
+
+        // Drains the published prefix of the ring; returns its length.
+        int drainBatch() {
+            long h = head;
+            int n = 0;
+            Entry entry;
+            while (n < ring.length && (entry = ring[(int) h & mask]).sequence == h) {
+                StdOutLogger.format(batch, entry.color, entry.text, entry.ex);
+                batch.append('\n');
+                entry.color = null;
+                entry.ex = null;
+                head = ++h;
+                ++n;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                batch.append("[log] ").append(lost).append(" messages dropped, ring full\n");
+            }
+            if (batch.length() > 0) {
+                Console.out().print(batch);
+                batch.setLength(0);
+            }
+            return n;
+        }
+
+        // Lets the drainer empty the ring, then goes synchronous.
+        void close() {
+            closed = true;
+            LockSupport.unpark(drainer);
+            try {
+                drainer.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Console.out().flush();
+        }
+    }
+
+    static int deviceID() {
+        return 10; //Kernel.device() != null? Kernel.device().deviceID() : -1; TODO
+    }
+
+    static StringBuilder devicePrefix(StringBuilder line, int deviceID) {
+        if (deviceID != -1) {
+            return line.append("[device@").append(deviceID).append("] ");
+        }
+        else {
+            return line.append("[local-device] ");
         }
     }
 
@@ -179,6 +535,31 @@ public enum Logger {
     public static void set(LogWriter writer) {
         logWriter = writer;
     }
+
+    // -- LEVEL MXBEAN ----------------------------------
+    // Reads and sets the level at runtime, e.g. TRACE from a JMX
+    // console on a live process.
+    //
+    public interface LoggerMXBean {
+
+        String getLevel();
+
+        void setLevel(String level);
+    }
+
+    static final class LoggerBean implements LoggerMXBean {
+        public String getLevel() { return logger.name(); }
+        public void setLevel(String level) { level(KernelLog.valueOf(level.trim().toUpperCase())); }
+    }
+
+    // A failure costs the export, not the logger.
+    private static void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new LoggerBean(), new ObjectName("utils:type=Logger"));
+        } catch (JMException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
 }
 
 